@@ -0,0 +1,335 @@
+package jdbpfx;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import jdbpfx.DBPFType.Type;
+import jdbpfx.util.DBPFUtil;
+
+/**
+ * Writes many DBPF files concurrently. Each job consists of a target file and
+ * the entries to write to it, as with {@link DBPFFile.Writer#write(File, Collection)}.
+ * <p>
+ * At most a given number of files are written at the same time. The
+ * compression of the {@link DBPFType DBPFTypes} to be written compressed is
+ * handed to a compression executor that may be shared by all the jobs, so that
+ * the entries of a file are compressed in parallel, while the previous entries
+ * are being written. Compression runs ahead of the writing of each job by at
+ * most {@link #COMPRESSION_LOOKAHEAD} entries, which bounds the amount of
+ * compressed data held in memory.
+ * <p>
+ * The progress and the outcome of every job are reported to an optional
+ * {@link Listener}.
+ *
+ * @author memo
+ */
+public class DBPFBatchWriter {
+
+    /**
+     * Receives the progress of the jobs of a {@link DBPFBatchWriter}. The
+     * methods are invoked by the writing threads, so they may be invoked
+     * concurrently for different jobs.
+     */
+    public static interface Listener {
+
+        /**
+         * Invoked whenever an entry has been written to the target file.
+         *
+         * @param target the target file of the job.
+         * @param written the number of entries written so far.
+         * @param total the total number of entries of the job, not counting
+         *      Directory files, which are skipped.
+         */
+        public void progress(File target, int written, int total);
+
+        /**
+         * Invoked when a job has been completed successfully.
+         *
+         * @param target the target file of the job.
+         */
+        public void completed(File target);
+
+        /**
+         * Invoked when a job has failed.
+         *
+         * @param target the target file of the job.
+         * @param cause the cause of the failure.
+         */
+        public void failed(File target, Throwable cause);
+    }
+
+    /**
+     * The maximum number of entries of a job that are compressed ahead of
+     * the entry that is being written.
+     */
+    public static final int COMPRESSION_LOOKAHEAD = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final int maxConcurrentWrites;
+    private final ExecutorService compressionExecutor;
+    private final boolean atomic;
+    private final Map<File, Collection<? extends DBPFEntry>> jobs =
+            new LinkedHashMap<File, Collection<? extends DBPFEntry>>();
+
+    /**
+     * Creates a batch writer without any jobs.
+     *
+     * @param maxConcurrentWrites the maximum number of files written at the
+     *      same time.
+     * @param compressionExecutor the executor that compresses the entries of
+     *      all the jobs, or {@code null} to compress the entries in the
+     *      writing threads.
+     *
+     * @throws IllegalArgumentException if {@code maxConcurrentWrites} is not
+     *      positive.
+     */
+    public DBPFBatchWriter(int maxConcurrentWrites, ExecutorService compressionExecutor) {
+        this(maxConcurrentWrites, compressionExecutor, false);
+    }
+
+    /**
+     * Creates a batch writer without any jobs, optionally writing the files
+     * atomically, as described in {@link DBPFFile.Writer}.
+     *
+     * @param maxConcurrentWrites the maximum number of files written at the
+     *      same time.
+     * @param compressionExecutor the executor that compresses the entries of
+     *      all the jobs, or {@code null} to compress the entries in the
+     *      writing threads.
+     * @param atomic TRUE to replace the target files atomically.
+     *
+     * @throws IllegalArgumentException if {@code maxConcurrentWrites} is not
+     *      positive.
+     */
+    public DBPFBatchWriter(int maxConcurrentWrites, ExecutorService compressionExecutor, boolean atomic) {
+        if (maxConcurrentWrites <= 0) {
+            throw new IllegalArgumentException("Number of concurrent writes must be positive: " + maxConcurrentWrites);
+        }
+        this.maxConcurrentWrites = maxConcurrentWrites;
+        this.compressionExecutor = compressionExecutor;
+        this.atomic = atomic;
+    }
+
+    /**
+     * Adds a job. Adding a job for a target file that already has a job
+     * replaces the previous job.
+     *
+     * @param target the file to write.
+     * @param writeList the entries to write to the file.
+     */
+    public void add(File target, Collection<? extends DBPFEntry> writeList) {
+        this.jobs.put(target, writeList);
+    }
+
+    /**
+     * @return the number of jobs.
+     */
+    public int getJobCount() {
+        return this.jobs.size();
+    }
+
+    /**
+     * Executes all the jobs and waits until they are finished. The failure of
+     * one job does not affect the others.
+     *
+     * @param listener the listener to report to, or {@code null}.
+     * @return the causes of the failed jobs by their target files, which is
+     *      empty if all the jobs have been successful.
+     *
+     * @throws IllegalStateException if the current thread is interrupted
+     *      while waiting for the jobs.
+     */
+    public Map<File, Throwable> write(Listener listener) {
+        List<File> targets = new ArrayList<File>(this.jobs.keySet());
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(targets.size());
+        for (Map.Entry<File, Collection<? extends DBPFEntry>> job : this.jobs.entrySet()) {
+            tasks.add(new WriteJob(job.getKey(), job.getValue(), listener));
+        }
+
+        Map<File, Throwable> failures = new LinkedHashMap<File, Throwable>();
+        ExecutorService writeExecutor = Executors.newFixedThreadPool(Math.min(this.maxConcurrentWrites, Math.max(1, tasks.size())));
+        try {
+            List<Future<Void>> futures = writeExecutor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failures.put(targets.get(i), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing files", e);
+        } finally {
+            writeExecutor.shutdownNow();
+        }
+        return failures;
+    }
+
+    /**
+     * Writes a single file.
+     */
+    private class WriteJob implements Callable<Void> {
+
+        private final File target;
+        private final Collection<? extends DBPFEntry> writeList;
+        private final Listener listener;
+        private final AtomicInteger written = new AtomicInteger();
+        private int total = 0;
+        private final List<ProgressEntry> entries = new ArrayList<ProgressEntry>();
+        // the index of the next entry to compress
+        private int nextCompression = 0;
+
+        private WriteJob(File target, Collection<? extends DBPFEntry> writeList, Listener listener) {
+            this.target = target;
+            this.writeList = writeList;
+            this.listener = listener;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try {
+                DBPFFile.Writer.precludeOverwritingCollision(target, writeList, atomic);
+                // wrapping the entries hides DirectDBPFEntries from the check above
+                for (DBPFEntry entry : writeList) {
+                    if (entry.getTGI().matches(DBPFTGI.DIRECTORY)) {
+                        continue;
+                    }
+                    DBPFType type = null;
+                    if (compressionExecutor != null && entry instanceof DBPFType &&
+                            ((DBPFType) entry).isCompressed() && ((DBPFType) entry).getType() != Type.RAW) {
+                        type = (DBPFType) entry;
+                    }
+                    entries.add(new ProgressEntry(entry, type, total++));
+                }
+                DBPFFile.Writer.write(target, entries, atomic);
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            } catch (RuntimeException e) {
+                fail(e);
+                throw e;
+            }
+            if (listener != null) {
+                listener.completed(target);
+            }
+            return null;
+        }
+
+        /**
+         * Submits the compression of the entries up to the look-ahead of the
+         * given entry.
+         */
+        private void compressAhead(int position) {
+            int end = Math.min(entries.size(), position + COMPRESSION_LOOKAHEAD);
+            for (; nextCompression < end; nextCompression++) {
+                final ProgressEntry entry = entries.get(nextCompression);
+                if (entry.type != null) {
+                    entry.compression = compressionExecutor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() {
+                            return entry.type.createData();
+                        }
+                    });
+                }
+            }
+        }
+
+        private void fail(Throwable cause) {
+            for (ProgressEntry entry : entries) {
+                if (entry.compression != null) {
+                    entry.compression.cancel(false);
+                    entry.compression = null;
+                }
+            }
+            DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFBatchWriter] Could not write file: " + target, cause);
+            if (listener != null) {
+                listener.failed(target, cause);
+            }
+        }
+
+        /**
+         * Delegates to an entry, providing its precompressed data if
+         * available, and reports the progress when its data has been read.
+         */
+        private class ProgressEntry extends DBPFEntry implements DBPFFile.Writer.WrappedEntry {
+
+            private final DBPFEntry entry;
+            // the type to compress, or null
+            private final DBPFType type;
+            private final int position;
+            // the pending compression, dropped once its data has been consumed
+            private Future<byte[]> compression;
+
+            private ProgressEntry(DBPFEntry entry, DBPFType type, int position) {
+                super(entry.getTGI());
+                this.entry = entry;
+                this.type = type;
+                this.position = position;
+            }
+
+            @Override
+            public DBPFEntry getWrappedEntry() {
+                return entry;
+            }
+
+            @Override
+            public ReadableByteChannel createDataChannel() {
+                compressAhead(position);
+                Future<byte[]> pending = compression;
+                compression = null;
+                final ReadableByteChannel channel;
+                if (pending == null) {
+                    channel = entry.createDataChannel();
+                } else {
+                    try {
+                        channel = Channels.newChannel(new ByteArrayInputStream(pending.get()));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while compressing entry: " + entry.getTGI(), e);
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException("Could not compress entry: " + entry.getTGI(), e.getCause());
+                    }
+                }
+                if (channel == null) {
+                    return null;
+                }
+                return new ReadableByteChannel() {
+                    @Override
+                    public boolean isOpen() {
+                        return channel.isOpen();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        boolean wasOpen = channel.isOpen();
+                        channel.close();
+                        if (wasOpen && listener != null) {
+                            listener.progress(target, written.incrementAndGet(), total);
+                        }
+                    }
+
+                    @Override
+                    public int read(ByteBuffer dst) throws IOException {
+                        return channel.read(dst);
+                    }
+                };
+            }
+        }
+    }
+}
@@ -1,30 +1,51 @@
 package jdbpfx;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 
 import jdbpfx.DBPFType.Type;
@@ -86,38 +107,50 @@ import jdbpfx.util.TGIFilter;
  * this is that (depending on the operating system) mapping a file may cause
  * unforseeable issues, especially if the mapping is still in memory (even though
  * the DBPF file has already been deallocated) and a process tries to access
- * the file otherwise. If there is no more need for the mapping, {@link #releaseMapping()}
- * <i>attempts</i> to close the {@code MappedByteBuffer}. For more information on this
+ * the file otherwise. If there is no more need for the mapping, {@link #close()}
+ * unmaps the {@code MappedByteBuffer} immediately, using the cleaner of the
+ * platform where available. Afterwards, reading the data of any entry of the
+ * file fails with an {@link IllegalStateException}. For more information on this
  * issue, see {@link FileChannel#map(FileChannel.MapMode, long, long)} and bug
  * <a href="http://bugs.sun.com/view_bug.do?bug_id=4724038">JDK-4724038</a>.
  * <p>
  * To avoid the problem of overwriting the source file and the need of preserving
  * the state of the source file, the method {@link Reader#readCached(File)} is
  * offered. It copies the source file into temporary memory (thus creating a
- * snapshot of the current state of the file) and guarantees it will not be changed
- * until the JVM is terminated. Invoking {@code readCached} on the same file twice
- * (with the same last-modified timestamp) will only involve one copy-process,
- * if both calls come from the same JVM. An attempt to delete the temp
- * file is made upon termination of the JVM, but the deletion cannot be assured,
- * especially because the temp file will also be mapped into memory. You should
- * therefore <i>always</i> call the {@code releaseMapping()} method on a cached {@code
- * DBPFFile}, before discarding the instance.
+ * snapshot of the current state of the file). The snapshots are shared by all
+ * JVMs: invoking {@code readCached} on the same file twice (with the same
+ * last-modified timestamp and size) will only involve one copy-process, even if
+ * the calls come from different JVMs. Snapshots are kept across JVM runs and are
+ * evicted, least recently used first, once their total size exceeds
+ * {@link Reader#getMaxCacheSize()}. Snapshots that are still in use are not
+ * evicted until their cached {@code DBPFFile} is closed, which is why you should
+ * <i>always</i> call the {@code close()} method on a cached {@code DBPFFile},
+ * before discarding the instance.
  * <p>
  * The temporary files will be copied into the folder "jdbpx_tmp" which will be
  * created in the System's temporary directory, given by
- * {@code System.getProperty("java.io.tmpdir")}. You may occasionally want to
- * check this directory for unused remaining files.
+ * {@code System.getProperty("java.io.tmpdir")}.
+ * <p>
+ * A lighter alternative is {@link Reader#readSnapshot(File)}, which does not
+ * copy the file upfront, but only preserves the data of its entries once the
+ * file is about to be overwritten by the {@link Writer}.
  *
  * <dt>
  * <b>Warning:</b>
- * <dd>None of these Classes are Thread-safe. It is advisable to handle multi-threaded
- * setups with extra caution. Consider using a single event-dispatching thread.
+ * <dd>The data of the entries of a {@code DBPFFile} may be read concurrently by
+ * multiple threads, including the asynchronous and batched reads, and the file
+ * may be closed or its mapping released while other threads read from it; such
+ * reads fail with an exception instead of accessing unmapped memory. Apart from
+ * that, the classes are not Thread-safe. In particular, the {@link Writer} must
+ * not write a file while other threads are still reading from a {@code DBPFFile}
+ * of that file, unless it has been read as a snapshot. The {@link DBPFBatchWriter}
+ * writes distinct files concurrently.
  * </dl>
  *
  * @author jondor
  * @author memo
  */
-public class DBPFFile {
+public class DBPFFile implements Closeable {
 
     /**
      * Holds the header data of this DBPF file.
@@ -128,7 +161,22 @@ public class DBPFFile {
     private HashMap<DBPFTGI, Long> tgiMap;
     private File file;
     private File tmpFile;
-    private MappedByteBuffer mappedByteBuffer;
+    private Mapping mapping;
+    private volatile boolean closed = false;
+    // guards the mapping against being unmapped while it is read from
+    private final ReentrantReadWriteLock mappingLock = new ReentrantReadWriteLock();
+    // state of a lazy snapshot, see Reader#readSnapshot
+    private boolean snapshot = false;
+    private long snapshotLength;
+    private long snapshotLastModified;
+    private volatile File preservedFile;
+    // shared by the asynchronous reads of the entries, opened on demand
+    private volatile AsynchronousFileChannel asyncChannel;
+
+    // entries closer than this are read together, skipping the gap in between
+    private static final int MAX_BATCH_GAP = 1 << 16;
+    // ranges are not merged beyond this size
+    private static final int MAX_BATCH_SIZE = 1 << 24;
 
     /**
      * Instantiates all of the fields of this DBPFFile object and sets the
@@ -342,6 +390,18 @@ public class DBPFFile {
         return this.getEntry(tgiMap.get(tgi));
     }
 
+    /**
+     * @return the first Directory file of this file, or {@code null}.
+     */
+    private DirectDBPFEntry getDirectoryEntry() {
+        for (DirectDBPFEntry entry : this.entryMap.values()) {
+            if (entry.getTGI().matches(DBPFTGI.DIRECTORY)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns a count of entries matching the specified TGI mask. TGIs may
      * include null (-1) components that will be masked against.
@@ -364,16 +424,174 @@ public class DBPFFile {
         return count;
     }
 
+    /**
+     * Reads the data of many entries of this file in the order of their
+     * offsets within the file and passes the data of each entry to the
+     * handler. Entries that lie close to each other are read together, so
+     * that the file is read sequentially in large chunks, which is much
+     * faster than reading the entries one by one in the order of the index,
+     * in particular on spinning disks and network shares.
+     * <p>
+     * The handler is invoked in the current thread, in the order of the
+     * offsets of the entries, and not while the file is being read from.
+     *
+     * @param entries the entries to read, for example obtained via
+     *      {@link #getEntries(TGIFilter)}.
+     * @param handler the handler receiving the data of each entry.
+     *
+     * @throws IllegalArgumentException if one of the entries does not belong
+     *      to this file.
+     * @throws IllegalStateException if this file has been closed.
+     * @throws IOException in case of an IO issue.
+     *
+     * @see DirectDBPFEntry#createData()
+     */
+    public void createData(Iterable<? extends DirectDBPFEntry> entries, DataHandler handler) throws IOException {
+        List<DirectDBPFEntry> sorted = new ArrayList<DirectDBPFEntry>();
+        for (DirectDBPFEntry entry : entries) {
+            if (entry.getEnclosingDBPFFile() != this) {
+                throw new IllegalArgumentException("Entry does not belong to file " + this.getFile() + ": " + entry);
+            }
+            sorted.add(entry);
+        }
+        Collections.sort(sorted, new Comparator<DirectDBPFEntry>() {
+            @Override
+            public int compare(DirectDBPFEntry e1, DirectDBPFEntry e2) {
+                return e1.offset < e2.offset ? -1 : e1.offset > e2.offset ? 1 : 0;
+            }
+        });
+
+        RandomAccessFile raf = null;
+        File rafFile = null;
+        // the skipped gaps between the entries of a range are read into this
+        byte[] gap = null;
+        try {
+            for (int i = 0, j; i < sorted.size(); i = j) {
+                // merge the following entries into one range, unless they overlap
+                long start = sorted.get(i).offset;
+                long end = start + sorted.get(i).size;
+                for (j = i + 1; j < sorted.size(); j++) {
+                    DirectDBPFEntry next = sorted.get(j);
+                    long nextEnd = next.offset + next.size;
+                    if (next.offset < end || next.offset > end + MAX_BATCH_GAP || nextEnd - start > MAX_BATCH_SIZE) {
+                        break;
+                    }
+                    end = nextEnd;
+                }
+
+                byte[][] data = new byte[j - i][];
+                for (int k = i; k < j; k++) {
+                    data[k - i] = new byte[(int) sorted.get(k).size];
+                }
+                this.mappingLock.readLock().lock();
+                try {
+                    this.checkOpen();
+                    if (this.isMapped()) {
+                        // reading from memory gains nothing from merging
+                        try {
+                            for (int k = i; k < j; k++) {
+                                this.mapping.read(sorted.get(k).offset, data[k - i], 0, data[k - i].length);
+                            }
+                        } catch (BufferUnderflowException e) {
+                            throw new EOFException("Entries exceed the end of file: " + this.getFile());
+                        }
+                    } else {
+                        // the data file changes once a snapshot has been preserved
+                        if (raf == null || rafFile != this.getDataFile()) {
+                            Reader.closeAll(raf);
+                            rafFile = this.getDataFile();
+                            raf = new RandomAccessFile(rafFile, "r");
+                        }
+                        // scatter the range into the arrays of the entries, skipping the gaps
+                        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(2 * (j - i));
+                        long pos = start;
+                        for (int k = i; k < j; k++) {
+                            long offset = sorted.get(k).offset;
+                            if (offset > pos) {
+                                if (gap == null) {
+                                    gap = new byte[MAX_BATCH_GAP];
+                                }
+                                buffers.add(ByteBuffer.wrap(gap, 0, (int) (offset - pos)));
+                            }
+                            buffers.add(ByteBuffer.wrap(data[k - i]));
+                            pos = offset + data[k - i].length;
+                        }
+                        ByteBuffer[] dsts = buffers.toArray(new ByteBuffer[buffers.size()]);
+                        FileChannel fc = raf.getChannel();
+                        fc.position(start);
+                        for (long remaining = end - start; remaining > 0; ) {
+                            long count = fc.read(dsts);
+                            if (count < 0) {
+                                throw new EOFException("Entries exceed the end of file: " + this.getFile());
+                            }
+                            remaining -= count;
+                        }
+                    }
+                } finally {
+                    this.mappingLock.readLock().unlock();
+                }
+
+                for (int k = i; k < j; k++) {
+                    handler.handle(sorted.get(k), data[k - i]);
+                }
+            }
+        } finally {
+            Reader.closeAll(raf);
+        }
+    }
+
+    /**
+     * Receives the data of the entries read by
+     * {@link DBPFFile#createData(Iterable, DataHandler)}.
+     */
+    public static interface DataHandler {
+
+        /**
+         * Handles the data of an entry.
+         *
+         * @param entry the entry.
+         * @param data the raw data of the entry, as returned by
+         *      {@link DirectDBPFEntry#createData()}.
+         */
+        public void handle(DirectDBPFEntry entry, byte[] data);
+    }
+
+    /**
+     * Computes the number of bytes of the file on disk that are neither
+     * occupied by the header, the index nor any of the entries. This space
+     * can be reclaimed by {@link Writer#compact(DBPFFile, Comparator)}.
+     *
+     * @return the number of unused bytes.
+     */
+    public long getUnusedSize() {
+        List<DirectDBPFEntry> sorted = new ArrayList<DirectDBPFEntry>(this.entryMap.values());
+        Collections.sort(sorted, new Comparator<DirectDBPFEntry>() {
+            @Override
+            public int compare(DirectDBPFEntry e1, DirectDBPFEntry e2) {
+                return e1.offset < e2.offset ? -1 : e1.offset > e2.offset ? 1 : 0;
+            }
+        });
+        long used = Header.HEADER_SIZE + this.header.indexSize;
+        long end = 0;
+        // overlapping ranges are counted once
+        for (DirectDBPFEntry entry : sorted) {
+            long start = Math.max(entry.offset, end);
+            end = Math.max(end, entry.offset + entry.size);
+            used += Math.max(0, end - start);
+        }
+        return Math.max(0, this.file.length() - used);
+    }
+
     /**
      * Specifies whether this file was read in mapped (or cached) mode.
      *
      * @return TRUE if this DBPF file was read via {@code readMapped} or
-     *      {@code readCached}, and the method {@link #releaseMapping()} has not
-     *      been invoked yet,
+     *      {@code readCached}, and neither {@link #releaseMapping()} nor
+     *      {@link #close()} has been invoked yet,
      *      FALSE otherwise.
      */
     public boolean isMapped() {
-        return this.mappedByteBuffer != null;
+        return this.mapping != null;
     }
 
     /**
@@ -389,35 +607,461 @@ public class DBPFFile {
     }
 
     /**
-     * Attempts to release the {@link MappedByteBuffer} associated with
-     * the mapping of this file.
-     * <p>
-     * No guarantee can be made as for whether the buffer will actually be
-     * closed. It may still block the file.
+     * Releases the {@link MappedByteBuffer} associated with the mapping of
+     * this file. The buffer is unmapped immediately, if the platform offers
+     * a cleaner for it, otherwise it is left to the garbage collector.
+     * Subsequently, the entries of this file are read from the file on disk
+     * again, as if the file was read via {@link Reader#read(File)}.
      * <p>
      * Calling this method on a file that is not mapped has no effect.
      * Calling this method more than once has no effect.
      *
      * @see DBPFFile
      * @see Reader#readMapped(File)
+     * @see #close()
      */
     public void releaseMapping() {
-        if (this.isMapped()) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (DBPFFile.this) {
-                        DBPFFile.this.mappedByteBuffer = null;
-                        DBPFFile.this.tmpFile = null;
-                        System.gc();
-                        try {
-                            Thread.sleep(100);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
+        this.mappingLock.writeLock().lock();
+        try {
+            if (this.isMapped()) {
+                Mapping m = this.mapping;
+                File snapshot = this.tmpFile;
+                this.mapping = null;
+                this.tmpFile = null;
+                m.release();
+                if (snapshot != null) {
+                    Reader.releaseSnapshot(snapshot);
+                }
+            }
+        } finally {
+            this.mappingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes this DBPF file and releases its mapping, if any, as described in
+     * {@link #releaseMapping()}. Reading the data of any of the entries of
+     * this file afterwards fails with an {@link IllegalStateException}, but the
+     * header and the entry list remain accessible.
+     * <p>
+     * Calling this method more than once has no effect.
+     */
+    @Override
+    public void close() {
+        this.mappingLock.writeLock().lock();
+        try {
+            this.closed = true;
+            this.releaseMapping();
+            synchronized (this) {
+                if (this.asyncChannel != null) {
+                    try {
+                        this.asyncChannel.close();
+                    } catch (IOException e) {
+                        DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile] IOException while closing file: " + this.getFile(), e);
+                    }
+                }
+            }
+            if (this.snapshot) {
+                Reader.SNAPSHOTS.remove(this);
+                if (this.preservedFile != null) {
+                    this.preservedFile.delete();
+                }
+            }
+        } finally {
+            this.mappingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return TRUE if {@link #close()} has been invoked on this file,
+     *      FALSE otherwise.
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    private void checkOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("DBPF file is closed: " + this.getFile());
+        }
+        if (this.isChangedOnDisk()) {
+            throw new IllegalStateException("DBPF file has been changed on disk: " + this.getFile());
+        }
+    }
+
+    /**
+     * @return TRUE if this is a snapshot, the data of which has not been
+     *      preserved, and the file has been changed since it was read.
+     */
+    private boolean isChangedOnDisk() {
+        return this.snapshot && this.preservedFile == null &&
+                (this.file.length() != this.snapshotLength ||
+                this.file.lastModified() != this.snapshotLastModified);
+    }
+
+    private synchronized AsynchronousFileChannel getAsyncChannel() throws IOException {
+        // close() closes the channel while holding this monitor, so none can leak
+        if (this.closed) {
+            throw new ClosedChannelException();
+        }
+        if (this.asyncChannel == null) {
+            this.asyncChannel = Reader.openAsync(this.file, null);
+        }
+        return this.asyncChannel;
+    }
+
+    /**
+     * Specifies whether this file was read via {@link Reader#readSnapshot(File)}.
+     *
+     * @return TRUE if this file is a lazy snapshot, FALSE otherwise.
+     */
+    public boolean isSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * @return the file the data of the entries is read from.
+     */
+    private File getDataFile() {
+        File f = this.preservedFile;
+        return f != null ? f : this.file;
+    }
+
+    /**
+     * Copies the data of all the entries of this snapshot into a temporary
+     * file, before the original file gets overwritten. The data is copied to
+     * the same offsets, so that the temporary file is sparse on file systems
+     * that support it.
+     */
+    private void preserve() throws IOException {
+        this.mappingLock.writeLock().lock();
+        try {
+            if (this.closed || this.preservedFile != null || this.isChangedOnDisk()) {
+                // nothing (left) to preserve
+                return;
+            }
+            DBPFUtil.LOGGER.log(Level.INFO, "[DBPFFile] Preserving snapshot of {0}", this.file.getName());
+            Reader.initTmpDir();
+            File target = File.createTempFile(this.file.getName() + "_", Reader.PRESERVED_SUFFIX, Reader.TMP_DIR);
+            target.deleteOnExit();
+            RandomAccessFile srcRaf = null;
+            RandomAccessFile targetRaf = null;
+            boolean success = false;
+            try {
+                srcRaf = new RandomAccessFile(this.file, "r");
+                targetRaf = new RandomAccessFile(target, "rw");
+                FileChannel src = srcRaf.getChannel();
+                // transferFrom does not write beyond the end of the file
+                targetRaf.setLength(srcRaf.length());
+                FileChannel dst = targetRaf.getChannel();
+                for (DirectDBPFEntry entry : this.entryMap.values()) {
+                    src.position(entry.offset);
+                    long count = 0;
+                    while (count < entry.size) {
+                        long transferred = dst.transferFrom(src, entry.offset + count, entry.size - count);
+                        if (transferred <= 0) {
+                            throw new IOException("Could not preserve entry: " + entry);
                         }
+                        count += transferred;
                     }
                 }
-            }).start();
+                success = true;
+            } finally {
+                Reader.closeAll(srcRaf, targetRaf);
+                if (!success) {
+                    target.delete();
+                }
+            }
+            this.preservedFile = target;
+        } finally {
+            this.mappingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Unmaps the buffer via {@code sun.misc.Unsafe.invokeCleaner} (Java 9
+     * and later) or via the {@code cleaner} of the buffer (Java 8 and
+     * earlier). The buffer must not be accessed anymore afterwards.
+     *
+     * @return TRUE if the buffer was unmapped, FALSE if no cleaner is available.
+     */
+    private static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            if (Cleaner.INVOKE_CLEANER != null) {
+                Cleaner.INVOKE_CLEANER.invoke(Cleaner.UNSAFE, buffer);
+                return true;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+                return true;
+            }
+        } catch (Exception e) {
+            DBPFUtil.LOGGER.log(Level.FINE, "[DBPFFile] Cannot unmap buffer, leaving it to the garbage collector", e);
+        }
+        return false;
+    }
+
+    /**
+     * A read-only mapping of a file into memory. Either the entire file is
+     * mapped as a single buffer, or the file is mapped in windows of a fixed
+     * size, which are mapped on demand and unmapped again in
+     * least-recently-used order, once more than the maximum number of windows
+     * are mapped. The latter is required for files larger than 2 GB.
+     * <p>
+     * Reads from a single buffer may happen concurrently, whereas reads from
+     * windows are serialized.
+     */
+    private static class Mapping {
+        private final MappedByteBuffer buffer;
+        private final FileChannel channel;
+        private final long fileSize;
+        private final long windowSize;
+        private final int maxWindows;
+        // in access order, guarded by this
+        private final LinkedHashMap<Long, Window> windows;
+
+        private Mapping(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            this.channel = null;
+            this.fileSize = buffer.capacity();
+            this.windowSize = buffer.capacity();
+            this.maxWindows = 0;
+            this.windows = null;
+        }
+
+        private Mapping(FileChannel channel, int windowSize, final int maxWindows) throws IOException {
+            if (windowSize <= 0 || maxWindows <= 0) {
+                throw new IllegalArgumentException("Window size and number of windows must be positive");
+            }
+            this.buffer = null;
+            this.channel = channel;
+            this.fileSize = channel.size();
+            this.windowSize = windowSize;
+            this.maxWindows = maxWindows;
+            this.windows = new LinkedHashMap<Long, Window>(16, 0.75f, true);
+        }
+
+        /**
+         * Copies {@code length} bytes, starting at the file position
+         * {@code position}, into the array.
+         *
+         * @throws BufferUnderflowException if the end of the file is reached.
+         * @throws IOException if a window cannot be mapped.
+         */
+        private void read(long position, byte[] dst, int off, int length) throws IOException {
+            if (position < 0 || position + length > fileSize) {
+                throw new BufferUnderflowException();
+            }
+            if (buffer != null) {
+                // duplicate, so that entries may be read concurrently
+                ByteBuffer buf = buffer.duplicate();
+                buf.position((int) position);
+                buf.get(dst, off, length);
+                return;
+            }
+            while (length > 0) {
+                long index = position / windowSize;
+                int start = (int) (position - index * windowSize);
+                // the window is pinned, so that it is not unmapped while copying
+                Window window = pinWindow(index);
+                try {
+                    ByteBuffer buf = window.buffer.duplicate();
+                    buf.position(start);
+                    int count = Math.min(length, buf.remaining());
+                    buf.get(dst, off, count);
+                    position += count;
+                    off += count;
+                    length -= count;
+                } finally {
+                    unpinWindow(window);
+                }
+            }
+        }
+
+        private Window pinWindow(long index) throws IOException {
+            synchronized (this) {
+                Window window = windows.get(index);
+                if (window != null) {
+                    window.pins++;
+                    return window;
+                }
+            }
+            // mapping takes a while, so other windows may be read meanwhile
+            long start = index * windowSize;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(windowSize, fileSize - start));
+            synchronized (this) {
+                Window window = windows.get(index);
+                if (window != null) {
+                    // mapped by another thread in the meantime
+                    unmap(buffer);
+                } else {
+                    window = new Window(buffer);
+                    windows.put(index, window);
+                }
+                window.pins++;
+                evictWindows();
+                return window;
+            }
+        }
+
+        private synchronized void unpinWindow(Window window) {
+            window.pins--;
+            evictWindows();
+        }
+
+        /**
+         * Unmaps the least recently used windows that are not pinned, while
+         * there are too many windows.
+         */
+        private void evictWindows() {
+            Iterator<Window> it = windows.values().iterator();
+            while (windows.size() > maxWindows && it.hasNext()) {
+                Window window = it.next();
+                if (window.pins == 0) {
+                    it.remove();
+                    unmap(window.buffer);
+                }
+            }
+        }
+
+        private synchronized void release() {
+            boolean unmapped = true;
+            if (buffer != null) {
+                unmapped = unmap(buffer);
+            } else {
+                for (Window window : windows.values()) {
+                    unmapped &= unmap(window.buffer);
+                }
+                windows.clear();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile] IOException while closing mapping", e);
+                }
+            }
+            if (!unmapped) {
+                System.gc();
+            }
+        }
+
+        /**
+         * A mapped window of a file, which is pinned while being read from.
+         */
+        private static class Window {
+            private final MappedByteBuffer buffer;
+            private int pins = 0;
+
+            private Window(MappedByteBuffer buffer) {
+                this.buffer = buffer;
+            }
+        }
+    }
+
+    /**
+     * The result of an asynchronous read, which also notifies an optional
+     * {@link CompletionHandler} upon completion. Cancellation is not
+     * supported.
+     */
+    private static class AsyncResult<V, A> implements Future<V>, CompletionHandler<V, Void> {
+        private final A attachment;
+        private final CompletionHandler<V, ? super A> handler;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private volatile V value;
+        private volatile Throwable failure;
+
+        private AsyncResult(A attachment, CompletionHandler<V, ? super A> handler) {
+            this.attachment = attachment;
+            this.handler = handler;
+        }
+
+        @Override
+        public void completed(V result, Void ignored) {
+            if (done.compareAndSet(false, true)) {
+                value = result;
+                latch.countDown();
+                if (handler != null) {
+                    handler.completed(result, attachment);
+                }
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void ignored) {
+            if (done.compareAndSet(false, true)) {
+                failure = exc;
+                latch.countDown();
+                if (handler != null) {
+                    handler.failed(exc, attachment);
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return getNow();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getNow();
+        }
+
+        private V getNow() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Holds the cleaner of the platform, looked up once.
+     */
+    private static class Cleaner {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+            } catch (Exception e) {
+                // Java 8 or earlier, fall back to the cleaner of the buffer
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
         }
     }
 
@@ -536,13 +1180,68 @@ public class DBPFFile {
         private static final String TMP_DIR_NAME = "jdbpfx_tmp";
         private static final File TMP_DIR =
                 new File(System.getProperty("java.io.tmpdir"), TMP_DIR_NAME);
-        private static final String JVM_ID;
-        private static final int MAX_POLL_TIME = 10000;
+        private static final String LOCK_SUFFIX = ".lock";
+        private static final String PART_SUFFIX = ".part";
+        private static final String PRESERVED_SUFFIX = ".preserved";
+        // the open lazy snapshots, to be preserved before their file is overwritten
+        private static final Map<DBPFFile, Boolean> SNAPSHOTS =
+                Collections.synchronizedMap(new WeakHashMap<DBPFFile, Boolean>());
+        private static final long STALE_PART_AGE = 60 * 60 * 1000;
         private static final int HEADER_BUFFER_SIZE = 4 * 11;
-
+        // serializes the threads of this JVM, as file locks are held per JVM;
+        // striped by the key of the snapshot, so that their number is bounded
+        private static final Object[] SNAPSHOT_MONITORS = new Object[64];
         static {
-            Random rand = new Random();
-            JVM_ID = String.format("%08X", rand.nextInt());
+            for (int i = 0; i < SNAPSHOT_MONITORS.length; i++) {
+                SNAPSHOT_MONITORS[i] = new Object();
+            }
+        }
+        private static final Random RANDOM = new Random();
+        // the snapshots mapped in this JVM, each holding a shared lock that
+        // prevents it from being evicted by any JVM, as file locks are held per JVM
+        private static final Map<File, SnapshotUse> SNAPSHOT_USES = new HashMap<File, SnapshotUse>();
+
+        /**
+         * The default maximum total size of the snapshots created by
+         * {@link #readCached(File)} (4 GB).
+         */
+        public static final long DEFAULT_MAX_CACHE_SIZE = 4L << 30;
+        private static volatile long maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+
+        /**
+         * The default size of the windows of a segmented mapping (256 MB).
+         *
+         * @see #readMapped(File, int, int)
+         */
+        public static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+        /**
+         * The default maximum number of windows of a segmented mapping that
+         * are mapped at the same time.
+         *
+         * @see #readMapped(File, int, int)
+         */
+        public static final int DEFAULT_MAX_WINDOWS = 4;
+
+        /**
+         * @return the maximum total size in bytes of the snapshots created by
+         *         {@link #readCached(File)}.
+         */
+        public static long getMaxCacheSize() {
+            return maxCacheSize;
+        }
+
+        /**
+         * Sets the maximum total size of the snapshots created by
+         * {@link #readCached(File)}. Whenever a new snapshot is created, the
+         * least recently used snapshots are deleted until the total size does
+         * not exceed this limit anymore. The new snapshot itself is never
+         * deleted, and neither are snapshots that are still in use by a cached
+         * {@code DBPFFile} that has not been closed, in any JVM.
+         *
+         * @param size the maximum size in bytes.
+         */
+        public static void setMaxCacheSize(long size) {
+            maxCacheSize = size;
         }
 
         /**
@@ -609,36 +1308,28 @@ public class DBPFFile {
                     ByteBuffer buf = ByteBuffer.allocate(HEADER_BUFFER_SIZE);
                     buf.order(ByteOrder.LITTLE_ENDIAN);
                     raf.readFully(buf.array());
-                    long majorVersion = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                    long minorVersion = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                    buf.position(20); //raf.skipBytes(12);
-                    long dateCreated = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                    long dateModified = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                    long indexType = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                    long indexEntryCount = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                    long indexOffsetLocation = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                    long indexSize = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-
-                    DBPFFile dbpfFile = new DBPFFile(filename, majorVersion, minorVersion,
-                                            dateCreated, dateModified, indexType,
-                                            indexEntryCount, indexOffsetLocation, indexSize);
+                    DBPFFile dbpfFile = createFromHeader(filename, buf);
 
                     // Read the index
-                    raf.seek(indexOffsetLocation);
-                    buf = ByteBuffer.allocate((int) indexSize);
+                    checkRange(filename, dbpfFile.header.indexOffsetLocation, dbpfFile.header.indexSize, raf.length());
+                    raf.seek(dbpfFile.header.indexOffsetLocation);
+                    buf = ByteBuffer.allocate((int) dbpfFile.header.indexSize);
                     buf.order(ByteOrder.LITTLE_ENDIAN);
                     raf.readFully(buf.array());
-                    for (int i = 0; i < indexEntryCount; i++) {
-                        long tid = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                        long gid = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                        long iid = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                        long offset = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                        long size = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
-                        DBPFTGI tgi = DBPFTGI.valueOf(tid, gid, iid);
-                        DirectDBPFEntry entry = dbpfFile.new DirectDBPFEntry(tgi, offset, size, i);
-                        dbpfFile.addEntry(entry);
-
-                        // System.out.println(entry.toString());
+                    readIndex(dbpfFile, buf);
+
+                    // Read the compression metadata
+                    DirectDBPFEntry dir = dbpfFile.getDirectoryEntry();
+                    ByteBuffer dirBuf = dir != null ? allocateDirectory(filename, dir, raf.length()) : null;
+                    if (dirBuf != null) {
+                        // the compression remains unknown if the Directory file is corrupt
+                        try {
+                            raf.seek(dir.offset);
+                            raf.readFully(dirBuf.array());
+                            readDirectory(dbpfFile, dirBuf.array());
+                        } catch (IOException | RuntimeException | Error e) {
+                            DBPFUtil.LOGGER.log(Level.WARNING, "[DBPFFile.Reader] Cannot read Directory file of " + filename, e);
+                        }
                     }
                     return dbpfFile;
                 } else {
@@ -656,37 +1347,297 @@ public class DBPFFile {
         }
 
         /**
-         * Reads a DBPF file and maps the file from disk to memory.
+         * Reads a DBPF file asynchronously. The header and the index are
+         * read without blocking the current thread.
          * <p>
-         * This is best suited for similar purposes as {@link #read(File)},
-         * with the difference that subsequent writing of a large amount of
-         * entries will be much faster, which is suitable for large files and
-         * files for which the {@code createType} methods of {@code DirectDBPFEntry}
-         * will be called a lot.
-         * <p>
-         * <b>Important:</b> Always release the mapping via {@link DBPFFile#releaseMapping()}
-         * before discarding the DBPFFile.
+         * The channel opened for reading remains open and is used for the
+         * subsequent calls of {@link DirectDBPFEntry#createDataAsync()}, so
+         * that the asynchronous reads of all the entries of the file share the
+         * same executor. Therefore, always close the DBPFFile via
+         * {@link DBPFFile#close()} before discarding it.
          * <p>
          * <b>Important:</b> Observe the annotations in {@link DBPFFile}
          *
          * @param filename
          *            The file of the DBPF file to read.
-         * @return The DBPF file object.
-         *
-         * @throws DBPFFileFormatException if {@link #checkFileType} returns {@code false}.
-         * @throws FileNotFoundException if the file does not exist or is inaccessible.
-         * @throws IOException in case of an IO issue.
+         * @param executor
+         *            The executor that completes the reads, or {@code null} to
+         *            use the default thread pool of the system.
+         * @return the future DBPF file object. Its {@code get} method throws an
+         *         {@link ExecutionException} caused by a
+         *         {@link DBPFFileFormatException}, if {@link #checkFileType}
+         *         would return {@code false}, or by an {@link IOException} in
+         *         case of an IO issue.
          *
-         * @see #read(File)
-         * @see #readCached(File)
-         * @see DBPFFile
-         * @see FileChannel#map(FileChannel.MapMode, long, long)
+         * @see #readAsync(File, ExecutorService, Object, CompletionHandler)
+         * @see DirectDBPFEntry#createDataAsync()
          */
-        public static DBPFFile readMapped(File filename) throws DBPFFileFormatException, FileNotFoundException, IOException {
-            return readMapped(filename, filename);
+        public static Future<DBPFFile> readAsync(File filename, ExecutorService executor) {
+            return readAsync(filename, executor, null, null);
         }
 
-        private static DBPFFile readMapped(File filename, File mapFile) throws DBPFFileFormatException, FileNotFoundException, IOException {
+        /**
+         * Reads a DBPF file asynchronously, like
+         * {@link #readAsync(File, ExecutorService)}, and additionally notifies
+         * the handler upon completion. The handler is invoked by a thread of
+         * the executor.
+         *
+         * @param filename
+         *            The file of the DBPF file to read.
+         * @param executor
+         *            The executor that completes the reads, or {@code null} to
+         *            use the default thread pool of the system.
+         * @param attachment
+         *            The object to pass to the handler.
+         * @param handler
+         *            The handler, or {@code null}.
+         * @return the future DBPF file object.
+         */
+        public static <A> Future<DBPFFile> readAsync(final File filename, ExecutorService executor,
+                A attachment, CompletionHandler<DBPFFile, ? super A> handler) {
+            final AsyncResult<DBPFFile, A> result = new AsyncResult<DBPFFile, A>(attachment, handler);
+            final AsynchronousFileChannel channel;
+            try {
+                channel = openAsync(filename, executor);
+            } catch (IOException e) {
+                result.failed(e, null);
+                return result;
+            }
+            DBPFUtil.LOGGER.log(Level.INFO, "[DBPFFile.Reader] Reading {0}", filename.getName());
+            final CompletionHandler<ByteBuffer, Void> failure = new CompletionHandler<ByteBuffer, Void>() {
+                @Override
+                public void completed(ByteBuffer buf, Void ignored) {}
+
+                @Override
+                public void failed(Throwable exc, Void ignored) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Reader] IOException for file: " + filename, e);
+                    }
+                    result.failed(exc, null);
+                }
+            };
+            ByteBuffer headerBuf = ByteBuffer.allocate(4 + HEADER_BUFFER_SIZE);
+            headerBuf.order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, headerBuf, 0, new CompletionHandler<ByteBuffer, Void>() {
+                @Override
+                public void completed(ByteBuffer buf, Void ignored) {
+                    final DBPFFile dbpfFile;
+                    ByteBuffer indexBuf;
+                    try {
+                        byte[] fileType = new byte[4];
+                        buf.get(fileType);
+                        if (!new String(fileType, Charset.forName("US-ASCII")).equals(DBPFUtil.MAGICNUMBER_DBPF)) {
+                            throw new DBPFFileFormatException("Not a DBPF formatted file: " + filename);
+                        }
+                        dbpfFile = createFromHeader(filename, buf);
+                        checkRange(filename, dbpfFile.header.indexOffsetLocation, dbpfFile.header.indexSize, channel.size());
+                        indexBuf = ByteBuffer.allocate((int) dbpfFile.header.indexSize);
+                    } catch (IOException | RuntimeException | Error e) {
+                        failure.failed(e, null);
+                        return;
+                    }
+                    indexBuf.order(ByteOrder.LITTLE_ENDIAN);
+                    readFully(channel, indexBuf, dbpfFile.header.indexOffsetLocation, new CompletionHandler<ByteBuffer, Void>() {
+                        @Override
+                        public void completed(ByteBuffer buf, Void ignored) {
+                            final DirectDBPFEntry dir;
+                            ByteBuffer dirBuf = null;
+                            try {
+                                readIndex(dbpfFile, buf);
+                                dir = dbpfFile.getDirectoryEntry();
+                                if (dir != null) {
+                                    dirBuf = allocateDirectory(filename, dir, channel.size());
+                                }
+                            } catch (BufferUnderflowException e) {
+                                failure.failed(new DBPFFileFormatException("Corrupt index of file: " + filename), null);
+                                return;
+                            } catch (IOException | RuntimeException | Error e) {
+                                failure.failed(e, null);
+                                return;
+                            }
+                            dbpfFile.asyncChannel = channel;
+                            if (dirBuf == null) {
+                                result.completed(dbpfFile, null);
+                                return;
+                            }
+                            // read the compression metadata
+                            readFully(channel, dirBuf, dir.offset, new CompletionHandler<ByteBuffer, Void>() {
+                                @Override
+                                public void completed(ByteBuffer buf, Void ignored) {
+                                    try {
+                                        readDirectory(dbpfFile, buf.array());
+                                    } catch (RuntimeException | Error e) {
+                                        DBPFUtil.LOGGER.log(Level.WARNING, "[DBPFFile.Reader] Cannot read Directory file of " + filename, e);
+                                    }
+                                    result.completed(dbpfFile, null);
+                                }
+
+                                @Override
+                                public void failed(Throwable exc, Void ignored) {
+                                    DBPFUtil.LOGGER.log(Level.WARNING, "[DBPFFile.Reader] Cannot read Directory file of " + filename, exc);
+                                    result.completed(dbpfFile, null);
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void failed(Throwable exc, Void ignored) {
+                            failure.failed(exc, null);
+                        }
+                    });
+                }
+
+                @Override
+                public void failed(Throwable exc, Void ignored) {
+                    failure.failed(exc, null);
+                }
+            });
+            return result;
+        }
+
+        private static AsynchronousFileChannel openAsync(File file, ExecutorService executor) throws IOException {
+            if (executor == null) {
+                return AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+            } else {
+                return AsynchronousFileChannel.open(file.toPath(),
+                        Collections.singleton(StandardOpenOption.READ), executor);
+            }
+        }
+
+        /**
+         * @throws DBPFFileFormatException if the range does not lie within
+         *      the file or cannot be held in a single array.
+         */
+        private static void checkRange(File filename, long offset, long length, long fileSize) throws DBPFFileFormatException {
+            if (offset < 0 || length < 0 || length > Integer.MAX_VALUE || offset > fileSize || length > fileSize - offset) {
+                throw new DBPFFileFormatException(String.format(
+                        "Range of %d bytes at offset %d exceeds file of %d bytes: %s", length, offset, fileSize, filename));
+            }
+        }
+
+        /**
+         * @return a buffer for the data of the Directory file, or {@code null}
+         *      if its range is corrupt, in which case the compression of the
+         *      entries remains unknown.
+         */
+        private static ByteBuffer allocateDirectory(File filename, DirectDBPFEntry dir, long fileSize) {
+            try {
+                checkRange(filename, dir.offset, dir.size, fileSize);
+                return ByteBuffer.allocate((int) dir.size);
+            } catch (DBPFFileFormatException | OutOfMemoryError e) {
+                DBPFUtil.LOGGER.log(Level.WARNING, "[DBPFFile.Reader] Cannot read Directory file of " + filename, e);
+                return null;
+            }
+        }
+
+        /**
+         * Reads from the channel until the buffer is full, then passes the
+         * flipped buffer to the handler.
+         */
+        private static void readFully(final AsynchronousFileChannel channel, final ByteBuffer buf,
+                long position, final CompletionHandler<ByteBuffer, Void> handler) {
+            channel.read(buf, position, position, new CompletionHandler<Integer, Long>() {
+                @Override
+                public void completed(Integer count, Long position) {
+                    if (count < 0) {
+                        handler.failed(new EOFException("Unexpected end of file at position " + position), null);
+                    } else if (buf.hasRemaining()) {
+                        long next = position + count;
+                        channel.read(buf, next, next, this);
+                    } else {
+                        buf.flip();
+                        handler.completed(buf, null);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exc, Long position) {
+                    handler.failed(exc, null);
+                }
+            });
+        }
+
+        /**
+         * Reads a DBPF file and maps the file from disk to memory.
+         * <p>
+         * This is best suited for similar purposes as {@link #read(File)},
+         * with the difference that subsequent writing of a large amount of
+         * entries will be much faster, which is suitable for large files and
+         * files for which the {@code createType} methods of {@code DirectDBPFEntry}
+         * will be called a lot.
+         * <p>
+         * Files larger than 2 GB cannot be mapped as a whole, so they are
+         * mapped in windows, as if by {@link #readMapped(File, int, int)
+         * readMapped(filename, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOWS)}.
+         * <p>
+         * <b>Important:</b> Always close the DBPFFile via {@link DBPFFile#close()}
+         * before discarding it.
+         * <p>
+         * <b>Important:</b> Observe the annotations in {@link DBPFFile}
+         *
+         * @param filename
+         *            The file of the DBPF file to read.
+         * @return The DBPF file object.
+         *
+         * @throws DBPFFileFormatException if {@link #checkFileType} returns {@code false}.
+         * @throws FileNotFoundException if the file does not exist or is inaccessible.
+         * @throws IOException in case of an IO issue.
+         *
+         * @see #read(File)
+         * @see #readCached(File)
+         * @see DBPFFile
+         * @see FileChannel#map(FileChannel.MapMode, long, long)
+         */
+        public static DBPFFile readMapped(File filename) throws DBPFFileFormatException, FileNotFoundException, IOException {
+            return readMapped(filename, filename, 0, 0);
+        }
+
+        /**
+         * Reads a DBPF file and maps the file from disk to memory in windows
+         * of the given size. The windows are mapped when they are first read
+         * from, and at most {@code maxWindows} windows are mapped at the same
+         * time, the least recently used ones being unmapped first. Entries
+         * that straddle the boundary of two windows are read from both.
+         * <p>
+         * Other than with {@link #readMapped(File)}, the file remains opened
+         * until the DBPFFile is closed.
+         * <p>
+         * <b>Important:</b> Always close the DBPFFile via {@link DBPFFile#close()}
+         * before discarding it.
+         * <p>
+         * <b>Important:</b> Observe the annotations in {@link DBPFFile}
+         *
+         * @param filename
+         *            The file of the DBPF file to read.
+         * @param windowSize
+         *            The size of each window in bytes.
+         * @param maxWindows
+         *            The maximum number of windows mapped at the same time.
+         * @return The DBPF file object.
+         *
+         * @throws DBPFFileFormatException if {@link #checkFileType} returns {@code false}.
+         * @throws FileNotFoundException if the file does not exist or is inaccessible.
+         * @throws IOException in case of an IO issue.
+         * @throws IllegalArgumentException if {@code windowSize} or
+         *         {@code maxWindows} is not positive.
+         *
+         * @see #readMapped(File)
+         * @see DBPFFile
+         */
+        public static DBPFFile readMapped(File filename, int windowSize, int maxWindows) throws DBPFFileFormatException, FileNotFoundException, IOException {
+            if (windowSize <= 0 || maxWindows <= 0) {
+                throw new IllegalArgumentException("Window size and number of windows must be positive");
+            }
+            return readMapped(filename, filename, windowSize, maxWindows);
+        }
+
+        /**
+         * Maps the entire file, unless a positive window size is given or the
+         * file is too large, in which case it is mapped in windows.
+         */
+        private static DBPFFile readMapped(File filename, File mapFile, int windowSize, int maxWindows) throws DBPFFileFormatException, FileNotFoundException, IOException {
             DBPFFile dbpfFile = read(filename);
 
             FileInputStream fis = null;
@@ -694,8 +1645,18 @@ public class DBPFFile {
             try {
                 fis = new FileInputStream(mapFile);
                 fc = fis.getChannel();
-                MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-                dbpfFile.mappedByteBuffer = mbb;
+                if (windowSize <= 0 && fc.size() > Integer.MAX_VALUE) {
+                    windowSize = DEFAULT_WINDOW_SIZE;
+                    maxWindows = DEFAULT_MAX_WINDOWS;
+                }
+                if (windowSize > 0) {
+                    dbpfFile.mapping = new Mapping(fc, windowSize, maxWindows);
+                    // the channel is owned by the mapping now
+                    fc = null;
+                    fis = null;
+                } else {
+                    dbpfFile.mapping = new Mapping(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+                }
                 return dbpfFile;
 //                } catch (FileNotFoundException e) {
 //                    DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Reader] File not found: " + mapFile, e);
@@ -714,7 +1675,6 @@ public class DBPFFile {
                     throw new IOException("Could not create temp dir: " + TMP_DIR);
                 }
             }
-            TMP_DIR.deleteOnExit(); // TODO will only work if dir is empty?
         }
 
         /**
@@ -729,8 +1689,8 @@ public class DBPFFile {
          * two - any other operations on the created DBPF file are just as fast as
          * with a DBPF file obtained via {@link #readMapped(File)}.
          * <p>
-         * <b>Important:</b> Always release the mapping via {@link DBPFFile#releaseMapping()}
-         * before discarding the DBPFFile.
+         * <b>Important:</b> Always close the DBPFFile via {@link DBPFFile#close()}
+         * before discarding it.
          * <p>
          * <b>Important:</b> Observe the annotations in {@link DBPFFile}
          *
@@ -748,64 +1708,377 @@ public class DBPFFile {
          * @see FileChannel#map(FileChannel.MapMode, long, long)
          */
         public static DBPFFile readCached(File filename) throws DBPFFileFormatException, FileNotFoundException, IOException {
+            File tmpFile;
+            do {
+                tmpFile = snapshot(filename);
+                // retry if the snapshot has been evicted in the meantime
+            } while (!acquireSnapshot(tmpFile));
+
+            // tmp file exists now and is protected from eviction
+            DBPFFile dbpfFile = null;
+            try {
+                dbpfFile = readMapped(filename, tmpFile, 0, 0);
+            } finally {
+                if (dbpfFile == null) {
+                    releaseSnapshot(tmpFile);
+                }
+            }
+            dbpfFile.tmpFile = tmpFile;
+            return dbpfFile;
+        }
+
+        /**
+         * Reads a DBPF file as a lazy snapshot.
+         * <p>
+         * Like {@link #readCached(File)}, this is suited for long-lived DBPF
+         * files, the current content of which must be retained, but without
+         * the cost of copying the file upfront. Instead, the size and
+         * last-modified timestamp of the file are recorded, and the entries are
+         * read from the original file for as long as it is unchanged. If the
+         * file is about to be overwritten by the {@link Writer}, the data of
+         * the entries of all open snapshots of the file is copied to a
+         * temporary file first, from which it is read afterwards. Therefore,
+         * the entries of a snapshot may be written to the file they were read
+         * from.
+         * <p>
+         * Changes made to the file by other means cannot be intercepted, so
+         * reading an entry of the snapshot fails with an
+         * {@link IllegalStateException} if the file has been changed on disk
+         * before its data was preserved. A data channel that is open while the
+         * file is changed throws an {@link IOException} instead, at the latest
+         * when reaching the end of the data.
+         * <p>
+         * <b>Important:</b> Always close the DBPFFile via {@link DBPFFile#close()}
+         * before discarding it, which deletes the preserved data.
+         * <p>
+         * <b>Important:</b> Observe the annotations in {@link DBPFFile}
+         *
+         * @param filename
+         *            The file of the DBPF file to read.
+         * @return The DBPF file object.
+         *
+         * @throws DBPFFileFormatException if {@link #checkFileType} returns {@code false}.
+         * @throws FileNotFoundException if the file does not exist or is inaccessible.
+         * @throws IOException in case of an IO issue.
+         *
+         * @see #read(File)
+         * @see #readCached(File)
+         * @see DBPFFile
+         */
+        public static DBPFFile readSnapshot(File filename) throws DBPFFileFormatException, FileNotFoundException, IOException {
+            long length = filename.length();
+            long lastModified = filename.lastModified();
+            DBPFFile dbpfFile = read(filename);
+            dbpfFile.snapshot = true;
+            dbpfFile.snapshotLength = length;
+            dbpfFile.snapshotLastModified = lastModified;
+            // detect changes that happened while reading the index
+            dbpfFile.checkOpen();
+            SNAPSHOTS.put(dbpfFile, Boolean.TRUE);
+            return dbpfFile;
+        }
+
+        /**
+         * Preserves the data of the open snapshots of the file, before it
+         * gets overwritten.
+         */
+        private static void preserveSnapshots(File file) throws IOException {
+            List<DBPFFile> snapshots;
+            synchronized (SNAPSHOTS) {
+                snapshots = new ArrayList<DBPFFile>(SNAPSHOTS.keySet());
+            }
+            for (DBPFFile dbpfFile : snapshots) {
+                if (dbpfFile.getFile().equals(file)) {
+                    dbpfFile.preserve();
+                }
+            }
+        }
+
+        /**
+         * Locks the open snapshots of the file, the data of which has not been
+         * preserved and which are still consistent with the file, so that they
+         * cannot be read from until {@link #unlockSnapshots(List)} is called.
+         *
+         * @return the locked snapshots.
+         */
+        private static List<DBPFFile> lockUnchangedSnapshots(File file) {
+            List<DBPFFile> candidates = new ArrayList<DBPFFile>();
+            synchronized (SNAPSHOTS) {
+                for (DBPFFile dbpfFile : SNAPSHOTS.keySet()) {
+                    if (dbpfFile.getFile().equals(file)) {
+                        candidates.add(dbpfFile);
+                    }
+                }
+            }
+            // lock in a consistent order
+            Collections.sort(candidates, new Comparator<DBPFFile>() {
+                @Override
+                public int compare(DBPFFile f1, DBPFFile f2) {
+                    int h1 = System.identityHashCode(f1);
+                    int h2 = System.identityHashCode(f2);
+                    return h1 < h2 ? -1 : h1 > h2 ? 1 : 0;
+                }
+            });
+            List<DBPFFile> result = new ArrayList<DBPFFile>();
+            for (DBPFFile dbpfFile : candidates) {
+                dbpfFile.mappingLock.writeLock().lock();
+                if (dbpfFile.preservedFile == null && !dbpfFile.isChangedOnDisk()) {
+                    result.add(dbpfFile);
+                } else {
+                    dbpfFile.mappingLock.writeLock().unlock();
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Accepts the current state of the file for the locked snapshots,
+         * after their data has been left untouched by appending to the file.
+         */
+        private static void refreshSnapshots(List<DBPFFile> snapshots) {
+            for (DBPFFile dbpfFile : snapshots) {
+                dbpfFile.snapshotLength = dbpfFile.file.length();
+                dbpfFile.snapshotLastModified = dbpfFile.file.lastModified();
+            }
+        }
+
+        private static void unlockSnapshots(List<DBPFFile> snapshots) {
+            for (DBPFFile dbpfFile : snapshots) {
+                dbpfFile.mappingLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Returns the snapshot of the file, creating it if it does not exist.
+         * The snapshot is identified by the path, the last-modified timestamp
+         * and the size of the file. It is copied to a temporary file first
+         * which is then renamed atomically, so that a snapshot that exists is
+         * always complete. Concurrent copying of the same file is prevented by a
+         * lock file.
+         */
+        private static File snapshot(File filename) throws FileNotFoundException, IOException {
             initTmpDir();
 
-            File tmpFile = new File(TMP_DIR, String.format("%s_%08X_%X_%s",
-                    filename.getName(), filename.getAbsolutePath().hashCode(),
-                    filename.lastModified(), JVM_ID));
-            if (!tmpFile.exists()) {
-                // copy file to temp file
-                // TODO without blocking?
-                DBPFUtil.LOGGER.log(Level.INFO, "[DBPFFile.Reader] Caching {0}", filename.getName());
-                FileInputStream fis = null;
-                FileOutputStream fos = null;
-                FileChannel src = null;
-                FileChannel target = null;
-                try {
-                    fis = new FileInputStream(filename);
-                    fos = new FileOutputStream(tmpFile);
-                    src = fis.getChannel();
-                    target = fos.getChannel();
-                    long size = src.size();
-                    long count = target.transferFrom(src, 0, size);
-                    if (count != size) {
-                        throw new IOException("Could not transfer file: " + filename);
+            String key = snapshotKey(filename);
+            File snapshot = new File(TMP_DIR, key);
+            Object monitor = SNAPSHOT_MONITORS[(key.hashCode() & 0x7fffffff) % SNAPSHOT_MONITORS.length];
+            synchronized (monitor) {
+                if (!snapshot.exists()) {
+                    RandomAccessFile lockFile = null;
+                    FileLock lock = null;
+                    try {
+                        lockFile = new RandomAccessFile(new File(TMP_DIR, key + LOCK_SUFFIX), "rw");
+                        // blocks while another JVM is copying the file
+                        lock = lockFile.getChannel().lock();
+                        if (!snapshot.exists()) {
+                            copySnapshot(filename, snapshot);
+                            evictSnapshots(snapshot);
+                        } else {
+                            DBPFUtil.LOGGER.log(Level.INFO, "[DBPFFile.Reader] File {0} is already cached", filename.getName());
+                        }
+                    } finally {
+                        if (lock != null) {
+                            lock.release();
+                        }
+                        closeAll(lockFile);
                     }
-//                } catch (FileNotFoundException e) {
-//                    DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Reader] File not found: " + filename, e);
-//                    return null;
-//                } catch (IOException e) {
-//                    DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Reader] IOException for file: " + filename, e);
-//                    return null;
-                } finally {
-                    closeAll(src, fis, target, fos);
+                } else {
+                    DBPFUtil.LOGGER.log(Level.INFO, "[DBPFFile.Reader] File {0} is already cached", filename.getName());
                 }
-            } else {
-                // TODO temporary! should make use of existing copied files across different JVMs
-                // if tmp file has not been copied completely yet, then poll in 0.2s time steps
-                long fileLength = filename.length();
-                for (int step = 200, total = 0; tmpFile.length() != fileLength; total += step) {
-                    if (total >= MAX_POLL_TIME) {
-                        throw new IOException("Maximum poll time exceeded. Cannot read cached file: " + tmpFile);
+            }
+            // the timestamp of the snapshot marks its last use
+            snapshot.setLastModified(System.currentTimeMillis());
+            return snapshot;
+        }
+
+        private static String snapshotKey(File filename) {
+            return String.format("%s_%08X_%X_%X",
+                    filename.getName(), filename.getAbsolutePath().hashCode(),
+                    filename.lastModified(), filename.length());
+        }
+
+        /**
+         * Marks the snapshot as being in use, which prevents its eviction.
+         *
+         * @return FALSE if the snapshot has been evicted before it could be
+         *      marked, TRUE otherwise.
+         */
+        private static boolean acquireSnapshot(File snapshot) throws IOException {
+            synchronized (SNAPSHOT_USES) {
+                SnapshotUse use = SNAPSHOT_USES.get(snapshot);
+                if (use == null) {
+                    RandomAccessFile raf;
+                    try {
+                        raf = new RandomAccessFile(snapshot, "r");
+                    } catch (FileNotFoundException e) {
+                        return false;
                     }
+                    boolean success = false;
                     try {
-                        Thread.sleep(step);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new InterruptedIOException("Interrupted during caching of file: " + filename);
+                        // blocks while another JVM is evicting the snapshot
+                        FileLock lock = raf.getChannel().lock(0, Long.MAX_VALUE, true);
+                        if (!snapshot.exists()) {
+                            return false;
+                        }
+                        use = new SnapshotUse(raf, lock);
+                        SNAPSHOT_USES.put(snapshot, use);
+                        success = true;
+                    } finally {
+                        if (!success) {
+                            closeAll(raf);
+                        }
                     }
                 }
-                DBPFUtil.LOGGER.log(Level.INFO, "[DBPFFile.Reader] File {0} is already cached", filename.getName());
+                use.count++;
+                return true;
             }
-            tmpFile.deleteOnExit(); // okay since every JVM creates its own copy currently
+        }
 
-            // tmp file exists now
-            DBPFFile dbpfFile = readMapped(filename, tmpFile);
-            assert dbpfFile != null;
-            if (dbpfFile != null) {
-                dbpfFile.tmpFile = tmpFile;
+        /**
+         * Ends a use of the snapshot, as started by {@link #acquireSnapshot(File)}.
+         */
+        private static void releaseSnapshot(File snapshot) {
+            synchronized (SNAPSHOT_USES) {
+                SnapshotUse use = SNAPSHOT_USES.get(snapshot);
+                if (use != null && --use.count == 0) {
+                    SNAPSHOT_USES.remove(snapshot);
+                    try {
+                        // closing the file releases the lock
+                        closeAll(use.raf);
+                    } catch (IOException e) {
+                        DBPFUtil.LOGGER.log(Level.WARNING, "[DBPFFile.Reader] IOException for file: " + snapshot, e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Deletes the snapshot, unless it is in use by any JVM. Must be called
+         * while holding the monitor of {@link #SNAPSHOT_USES}.
+         *
+         * @return TRUE if the snapshot has been deleted, FALSE otherwise.
+         */
+        private static boolean deleteUnusedSnapshot(File snapshot) {
+            if (SNAPSHOT_USES.containsKey(snapshot)) {
+                return false;
+            }
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(snapshot, "rw");
+                FileLock lock = raf.getChannel().tryLock();
+                // deleting while holding the lock, so that it cannot be acquired for this file anymore
+                return lock != null && snapshot.delete();
+            } catch (IOException e) {
+                return false;
+            } finally {
+                try {
+                    closeAll(raf);
+                } catch (IOException e) {
+                    DBPFUtil.LOGGER.log(Level.WARNING, "[DBPFFile.Reader] IOException for file: " + snapshot, e);
+                }
+            }
+        }
+
+        /**
+         * A snapshot in use by this JVM.
+         */
+        private static class SnapshotUse {
+            private final RandomAccessFile raf;
+            private final FileLock lock;
+            private int count = 0;
+
+            private SnapshotUse(RandomAccessFile raf, FileLock lock) {
+                this.raf = raf;
+                this.lock = lock;
+            }
+        }
+
+        private static void copySnapshot(File filename, File snapshot) throws FileNotFoundException, IOException {
+            DBPFUtil.LOGGER.log(Level.INFO, "[DBPFFile.Reader] Caching {0}", filename.getName());
+            File partFile = new File(TMP_DIR, String.format("%s_%08X%s",
+                    snapshot.getName(), RANDOM.nextInt(), PART_SUFFIX));
+            FileInputStream fis = null;
+            FileOutputStream fos = null;
+            FileChannel src = null;
+            FileChannel target = null;
+            boolean success = false;
+            try {
+                fis = new FileInputStream(filename);
+                fos = new FileOutputStream(partFile);
+                src = fis.getChannel();
+                target = fos.getChannel();
+                long size = src.size();
+                long count = 0;
+                while (count < size) {
+                    long transferred = target.transferFrom(src, count, size - count);
+                    if (transferred <= 0) {
+                        throw new IOException("Could not transfer file: " + filename);
+                    }
+                    count += transferred;
+                }
+                closeAll(src, fis, target, fos);
+                // the key of the snapshot must still describe the copied content
+                if (!snapshot.getName().equals(snapshotKey(filename))) {
+                    throw new IOException("File has been changed while being cached: " + filename);
+                }
+                Files.move(partFile.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                success = true;
+            } finally {
+                closeAll(src, fis, target, fos);
+                if (!success) {
+                    partFile.delete();
+                }
+            }
+        }
+
+        /**
+         * Deletes the least recently used snapshots until their total size
+         * does not exceed the maximum cache size, as well as remainders of
+         * aborted copy-processes.
+         */
+        private static void evictSnapshots(File keep) {
+            File[] files = TMP_DIR.listFiles();
+            if (files == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long total = 0;
+            List<File> snapshots = new ArrayList<File>();
+            final Map<File, Long> lastUsed = new HashMap<File, Long>();
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(LOCK_SUFFIX) || name.endsWith(PRESERVED_SUFFIX)) {
+                    continue;
+                } else if (name.endsWith(PART_SUFFIX)) {
+                    if (now - f.lastModified() > STALE_PART_AGE) {
+                        f.delete();
+                    }
+                    continue;
+                }
+                snapshots.add(f);
+                lastUsed.put(f, f.lastModified());
+                total += f.length();
+            }
+            Collections.sort(snapshots, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    return lastUsed.get(f1).compareTo(lastUsed.get(f2));
+                }
+            });
+            long max = maxCacheSize;
+            synchronized (SNAPSHOT_USES) {
+                for (File f : snapshots) {
+                    if (total <= max) {
+                        break;
+                    }
+                    long length = f.length();
+                    if (!f.equals(keep) && deleteUnusedSnapshot(f)) {
+                        DBPFUtil.LOGGER.log(Level.INFO, "[DBPFFile.Reader] Evicted cached file {0}", f.getName());
+                        new File(TMP_DIR, f.getName() + LOCK_SUFFIX).delete();
+                        total -= length;
+                    }
+                }
             }
-            return dbpfFile;
         }
 
         private static void closeAll(Closeable... closeables) throws IOException {
@@ -816,143 +2089,502 @@ public class DBPFFile {
                         c.close();
                     } catch (IOException e) {
 //                        DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile." + sourceName + "] IOException for file: " + filename, e);
-                        if (cause != null) {
+                        if (cause == null) {
                             cause = e;
                         }
                     }
                 }
             }
-            if (cause != null) {
-                throw new IOException(cause);
-            }
-        }
-
-        private static String readChars(RandomAccessFile raf, int length) throws IOException {
-            byte[] b = new byte[length];
-            raf.readFully(b);
-            return new String(b, Charset.forName("US-ASCII"));
+            if (cause != null) {
+                throw new IOException(cause);
+            }
+        }
+
+        /**
+         * Creates the DBPF file from the header data following the file type.
+         */
+        private static DBPFFile createFromHeader(File filename, ByteBuffer buf) {
+            long majorVersion = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+            long minorVersion = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+            buf.position(buf.position() + 12); //raf.skipBytes(12);
+            long dateCreated = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+            long dateModified = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+            long indexType = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+            long indexEntryCount = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+            long indexOffsetLocation = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+            long indexSize = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+
+            return new DBPFFile(filename, majorVersion, minorVersion,
+                                    dateCreated, dateModified, indexType,
+                                    indexEntryCount, indexOffsetLocation, indexSize);
+        }
+
+        private static void readIndex(DBPFFile dbpfFile, ByteBuffer buf) {
+            for (int i = 0; i < dbpfFile.header.indexEntryCount; i++) {
+                long tid = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+                long gid = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+                long iid = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+                long offset = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+                long size = buf.getInt() & 0xffffffffL; //readUint32(raf, 4);
+                DBPFTGI tgi = DBPFTGI.valueOf(tid, gid, iid);
+                DirectDBPFEntry entry = dbpfFile.new DirectDBPFEntry(tgi, offset, size, i);
+                dbpfFile.addEntry(entry);
+
+                // System.out.println(entry.toString());
+            }
+        }
+
+        /**
+         * Sets the compression metadata of the entries according to the data
+         * of the Directory file, which lists the decompressed sizes of all the
+         * compressed entries.
+         */
+        private static void readDirectory(DBPFFile dbpfFile, byte[] data) {
+            // the Directory file lists an additional resource ID, unless the index type is 7
+            int length = dbpfFile.header.getIndexType() == 7 ? 16 : 20;
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            Map<DBPFTGI, Long> decompressedSizes = new HashMap<DBPFTGI, Long>((int) (data.length / length / 0.75) + 1);
+            while (buf.remaining() >= length) {
+                long tid = buf.getInt() & 0xffffffffL;
+                long gid = buf.getInt() & 0xffffffffL;
+                long iid = buf.getInt() & 0xffffffffL;
+                if (length == 20) {
+                    buf.getInt();
+                }
+                decompressedSizes.put(DBPFTGI.valueOf(tid, gid, iid), buf.getInt() & 0xffffffffL);
+            }
+            for (DirectDBPFEntry entry : dbpfFile.entryMap.values()) {
+                Long decompressedSize = decompressedSizes.get(entry.getTGI());
+                if (decompressedSize != null) {
+                    entry.setCompression(true, decompressedSize);
+                } else {
+                    entry.setCompression(false, entry.size);
+                }
+            }
+        }
+
+        private static String readChars(RandomAccessFile raf, int length) throws IOException {
+            byte[] b = new byte[length];
+            raf.readFully(b);
+            return new String(b, Charset.forName("US-ASCII"));
+        }
+    }
+
+    /**
+     * Provides static methods for writing a DBPF formatted file to disk.
+     * <p>
+     * None of the {@code write} or {@code update} methods update the delivered
+     * DBPFFile objects, so in order to get an updated copy of DBPF file it is
+     * necessary to either re-read the written file or (preferrably) retain a
+     * copy of the written {@code DBPFEntries}.
+     * <p>
+     * A customization of the {@code update} methods can easily be provided
+     * by the calling programm by using one of the {@code write} methods.
+     * <p>
+     * By default, the {@code write}, {@code update} and {@code compact} methods
+     * write directly into the target file, so if the process is interrupted,
+     * the file is left incomplete. Their overloads with an {@code atomic}
+     * parameter optionally write atomically instead: the file is written to a
+     * temporary file in the same directory, which is forced to disk and then
+     * atomically renamed to the target file. Thus, the target file either
+     * remains in its previous state or is replaced by the complete new file,
+     * even in case of a crash or power failure. This requires additional disk
+     * space for the temporary file.
+     * <p>
+     * As the source file is never modified by an atomic write, the entries of
+     * a mapped {@code DBPFFile} may be written to the file they are read from,
+     * even if it is not cached, as mapped {@code DBPFFiles} continue to read
+     * the previous version of the file. The entries of other {@code DBPFFiles}
+     * of the target file are still rejected, unless they are cached or lazy
+     * snapshots, as these {@code DBPFFiles} become invalid after the rename,
+     * just as if the file had been changed by another program. On some
+     * operating systems, the rename fails while the target file is mapped or
+     * opened, in which case an {@link IOException} is thrown and the target
+     * file is left unchanged.
+     * <p>
+     * {@link #append(DBPFFile, Collection)} is always crash-safe by design.
+     *
+     * @see DBPFFile
+     */
+    public static class Writer {
+
+        private Writer() {};
+
+        private static final String ATOMIC_TMP_SUFFIX = ".tmp";
+
+        /**
+         * Updates the given DBPF file by the {@code DBPFEntries} in {@code writeList}.
+         * <p>
+         * Any entry from the dbpfFile that has a TGI (first occurrence only) which is
+         * contained in the {@code writeList} will be replaced by the corresponding
+         * entry from the writeList. Afterwards, any remaining non-written entry from
+         * the writeList will be appended to the DBPF file.
+         * <p>
+         * Any Directory file will be skipped, instead an appropriate Directory file
+         * will be appended as last entry to the DBPF file.
+         *
+         * @param dbpfFile a DBPF file. It specifies the destination location and
+         *      the creation date.
+         * @param writeList a list of entries that have been updated.
+         * @return TRUE, if successfully written; FALSE, otherwise.
+         *
+         * @throws IllegalStateException
+         *      if the file is not cached and the writeList contains DirectDBPFEntries
+         *      and the target file is the same as the source file,
+         *      which would result in the source file being overwritten.
+         * @throws FileNotFoundException if the file does not exist or is inaccessible.
+         * @throws IOException in case of an IO issue.
+         */
+        public static boolean update(DBPFFile dbpfFile, Collection<? extends DBPFEntry> writeList) throws IllegalStateException, FileNotFoundException, IOException {
+            return update(dbpfFile, writeList, dbpfFile.getFile(), true);
+        }
+
+        /**
+         * Takes the {@code DBPFEntries} from the given DBPF file, updates them
+         * by the entries in {@code writeList} and writes everything to a new file
+         * location, thereby preserving the creation date.
+         * <p>
+         * Any entry from the dbpfFile that has a TGI (first occurrence only) which is
+         * contained in the {@code writeList} will be replaced by the corresponding
+         * entry from the writeList. Afterwards, any remaining non-written entry from
+         * the writeList will be appended to the DBPF file.
+         * <p>
+         * Any Directory file will be skipped, instead an appropriate Directory file
+         * will be appended as last entry to the DBPF file.
+         *
+         * @param dbpfFile a DBPF file specifying the creation date.
+         * @param writeList a list of entries that have been updated.
+         * @param newFile the new file location.
+         * @return TRUE, if successfully written; FALSE, otherwise.
+         *
+         * @throws IllegalStateException
+         *      if the file is not cached and the writeList contains DirectDBPFEntries
+         *      and the target file is the same as the source file,
+         *      which would result in the source file being overwritten.
+         * @throws FileNotFoundException if the file does not exist or is inaccessible.
+         * @throws IOException in case of an IO issue.
+         */
+        public static boolean update(DBPFFile dbpfFile, Collection<? extends DBPFEntry> writeList, File newFile) throws IllegalStateException, FileNotFoundException, IOException {
+            return update(dbpfFile, writeList, newFile, false);
+        }
+
+        /**
+         * Takes the {@code DBPFEntries} from the given DBPF file, updates them
+         * by the entries in {@code writeList} and writes everything to a new file
+         * location, thereby preserving the creation date if {@code preserveDateCreated}
+         * is set.
+         * <p>
+         * Any entry from the dbpfFile that has a TGI (first occurrence only) which is
+         * contained in the {@code writeList} will be replaced by the corresponding
+         * entry from the writeList. Afterwards, any remaining non-written entry from
+         * the writeList will be appended to the DBPF file.
+         * <p>
+         * Any Directory file will be skipped, instead an appropriate Directory file
+         * will be appended as last entry to the DBPF file.
+         *
+         * @param dbpfFile a DBPF file specifying the creation date.
+         * @param writeList a list of entries that have been updated.
+         * @param newFile the new file location.
+         * @param preserveDateCreated TRUE if the creation date is to preserved, FALSE if
+         *      the current date is to be used.
+         * @return TRUE, if successfully written; FALSE, otherwise.
+         *
+         * @throws IllegalStateException
+         *      if the file is not cached and the writeList contains DirectDBPFEntries
+         *      and the target file is the same as the source file,
+         *      which would result in the source file being overwritten.
+         * @throws FileNotFoundException if the file does not exist or is inaccessible.
+         * @throws IOException in case of an IO issue.
+         */
+        public static boolean update(DBPFFile dbpfFile, Collection<? extends DBPFEntry> writeList, File newFile, boolean preserveDateCreated) throws IllegalStateException, FileNotFoundException, IOException {
+            return update(dbpfFile, writeList, newFile, preserveDateCreated, false);
+        }
+
+        /**
+         * Updates the given DBPF file by the {@code DBPFEntries} in {@code writeList},
+         * like {@link #update(DBPFFile, Collection, File, boolean)}, optionally
+         * writing the file atomically, as described in {@link Writer}.
+         *
+         * @param dbpfFile a DBPF file.
+         * @param writeList a collection of DBPFEntries.
+         * @param newFile the destination file.
+         * @param preserveDateCreated whether to preserve the creation date of
+         *      the dbpfFile.
+         * @param atomic TRUE to replace the destination file atomically.
+         * @return TRUE, if successfully written; FALSE, otherwise.
+         *
+         * @throws IllegalStateException
+         *      if the file is not cached or a snapshot, or, if writing atomically,
+         *      mapped, and the destination file is the same as the source file.
+         * @throws FileNotFoundException if the file does not exist or is inaccessible.
+         * @throws IOException in case of an IO issue.
+         */
+        public static boolean update(DBPFFile dbpfFile, Collection<? extends DBPFEntry> writeList, File newFile,
+                boolean preserveDateCreated, boolean atomic) throws IllegalStateException, FileNotFoundException, IOException {
+            // create map view of writeList for fast look-up
+            int writeListSize = writeList.size();
+            Map<DBPFTGI, DBPFEntry> updatedEntries =
+                    new LinkedHashMap<DBPFTGI, DBPFEntry>((int) (writeListSize / 0.75) + 1);
+            for (DBPFEntry entry : writeList) {
+                updatedEntries.put(entry.getTGI(), entry);
+            }
+            // collect all the entries to write, replaced by updated types
+            Queue<DBPFEntry> updatedWriteList =
+                    new ArrayDeque<DBPFEntry>(dbpfFile.entryMap.size() + writeListSize);
+            for (DBPFEntry entry : dbpfFile.entryMap.values()) {
+                DBPFEntry updatedEntry = updatedEntries.remove(entry.getTGI());
+                updatedWriteList.add(updatedEntry == null ? entry : updatedEntry);
+            }
+            // add remaining types from writeList
+            updatedWriteList.addAll(updatedEntries.values());
+            return write(newFile, updatedWriteList, preserveDateCreated ? dbpfFile.header.getDateCreated() : (System.currentTimeMillis() / 1000), atomic);
+        }
+
+        /**
+         * Updates the given DBPF file in place by the {@code DBPFEntries} in
+         * {@code writeList}, without rewriting the unchanged entries.
+         * <p>
+         * The entries are replaced and appended as with
+         * {@link #update(DBPFFile, Collection)}, but the data of the new and
+         * replaced entries is appended to the end of the file, followed by a
+         * new Directory file and a new index. The unchanged entries of the
+         * file remain where they are. Only when all of this has been written to
+         * disk, the header is patched to point to the new index, so if the
+         * process is interrupted before, the file remains in its previous
+         * state.
+         * <p>
+         * The data of replaced entries, as well as the previous index and
+         * Directory file, remain in the file as unused space, which can only be
+         * reclaimed by rewriting the file, for example via
+         * {@link #update(DBPFFile, Collection)}.
+         * <p>
+         * Since the data of the file is not overwritten, the entries of the
+         * given {@code DBPFFile} and of any other {@code DBPFFile} opened on the
+         * same file remain readable. However, the given {@code DBPFFile} does
+         * not reflect the changes, so the file needs to be read again
+         * afterwards in order to update it once more.
+         *
+         * @param dbpfFile a DBPF file. It specifies the destination location.
+         * @param writeList a list of entries that have been updated.
+         * @return TRUE, if successfully written; FALSE, otherwise.
+         *
+         * @throws IllegalStateException if the file on disk has been changed
+         *      since the {@code DBPFFile} was read, or if the {@code DBPFFile}
+         *      has been closed.
+         * @throws FileNotFoundException if the file does not exist or is inaccessible.
+         * @throws IOException in case of an IO issue.
+         */
+        public static boolean append(DBPFFile dbpfFile, Collection<? extends DBPFEntry> writeList) throws IllegalStateException, FileNotFoundException, IOException {
+            dbpfFile.checkOpen();
+            File file = dbpfFile.getFile();
+            // create map view of writeList for fast look-up
+            Map<DBPFTGI, DBPFEntry> updatedEntries =
+                    new LinkedHashMap<DBPFTGI, DBPFEntry>((int) (writeList.size() / 0.75) + 1);
+            for (DBPFEntry entry : writeList) {
+                updatedEntries.put(entry.getTGI(), entry);
+            }
+            // collect all the entries to index, replaced by updated types
+            Queue<DBPFEntry> updatedWriteList =
+                    new ArrayDeque<DBPFEntry>(dbpfFile.entryMap.size() + writeList.size());
+            for (DBPFEntry entry : dbpfFile.entryMap.values()) {
+                DBPFEntry updatedEntry = updatedEntries.remove(entry.getTGI());
+                updatedWriteList.add(updatedEntry == null ? entry : updatedEntry);
+            }
+            updatedWriteList.addAll(updatedEntries.values());
+
+            // the snapshots are not read from while the file is being appended to
+            List<DBPFFile> snapshots = Reader.lockUnchangedSnapshots(file);
+            RandomAccessFile raf = null;
+            FileChannel fc = null;
+            boolean appending = false;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                fc = raf.getChannel();
+                checkHeaderUnchanged(dbpfFile, raf);
+                appending = true;
+
+                // the entries that remain in place, mapped to their decompressed size, or -1
+                Map<DBPFEntry, Long> inPlace = new IdentityHashMap<DBPFEntry, Long>();
+                for (DBPFEntry entry : updatedWriteList) {
+                    if (entry instanceof DirectDBPFEntry &&
+                            ((DirectDBPFEntry) entry).getEnclosingDBPFFile() == dbpfFile &&
+                            !entry.getTGI().matches(DBPFTGI.DIRECTORY)) {
+                        DirectDBPFEntry directEntry = (DirectDBPFEntry) entry;
+                        inPlace.put(entry, directEntry.isCompressed() ? directEntry.getDecompressedSize() : -1L);
+                    }
+                }
+                DBPFUtil.LOGGER.log(Level.INFO, "[DBPFFile.Writer] Appending to {0}", file.getName());
+                new WriteTask(updatedWriteList, raf, fc, dbpfFile.header.getDateCreated(), raf.length(), inPlace).execute();
+            } finally {
+                try {
+                    Reader.closeAll(fc, raf);
+                } finally {
+                    // the data of the snapshots has not been changed, even if
+                    // the append failed after writing some data
+                    if (appending) {
+                        Reader.refreshSnapshots(snapshots);
+                    }
+                    Reader.unlockSnapshots(snapshots);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Orders entries by type, then group, then instance ID, so that
+         * related entries are stored next to each other.
+         *
+         * @see #compact(DBPFFile, Comparator)
+         */
+        public static final Comparator<DBPFEntry> TGI_ORDER = new Comparator<DBPFEntry>() {
+            @Override
+            public int compare(DBPFEntry e1, DBPFEntry e2) {
+                DBPFTGI tgi1 = e1.getTGI(), tgi2 = e2.getTGI();
+                int result = compareUnsigned(tgi1.getType(), tgi2.getType());
+                if (result == 0) {
+                    result = compareUnsigned(tgi1.getGroup(), tgi2.getGroup());
+                    if (result == 0) {
+                        result = compareUnsigned(tgi1.getInstance(), tgi2.getInstance());
+                    }
+                }
+                return result;
+            }
+
+            private int compareUnsigned(long a, long b) {
+                return a < b ? -1 : a > b ? 1 : 0;
+            }
+        };
+
+        /**
+         * Creates an order of entries by the position of their TGIs within
+         * the given list, for example a list of the TGIs in the order they were
+         * accessed. Entries the TGIs of which are not contained in the list
+         * are ordered last.
+         *
+         * @param tgis the TGIs in the desired order. If a TGI occurs multiple
+         *      times, its first occurrence counts.
+         * @return the comparator.
+         *
+         * @see #compact(DBPFFile, Comparator)
+         */
+        public static Comparator<DBPFEntry> listOrder(List<? extends DBPFTGI> tgis) {
+            final Map<DBPFTGI, Integer> positions = new HashMap<DBPFTGI, Integer>((int) (tgis.size() / 0.75) + 1);
+            for (int i = 0; i < tgis.size(); i++) {
+                if (!positions.containsKey(tgis.get(i))) {
+                    positions.put(tgis.get(i), i);
+                }
+            }
+            return new Comparator<DBPFEntry>() {
+                @Override
+                public int compare(DBPFEntry e1, DBPFEntry e2) {
+                    Integer p1 = positions.get(e1.getTGI());
+                    Integer p2 = positions.get(e2.getTGI());
+                    int i1 = p1 == null ? Integer.MAX_VALUE : p1;
+                    int i2 = p2 == null ? Integer.MAX_VALUE : p2;
+                    return i1 < i2 ? -1 : i1 > i2 ? 1 : 0;
+                }
+            };
         }
-    }
-
-    /**
-     * Provides static methods for writing a DBPF formatted file to disk.
-     * <p>
-     * None of the {@code write} or {@code update} methods update the delivered
-     * DBPFFile objects, so in order to get an updated copy of DBPF file it is
-     * necessary to either re-read the written file or (preferrably) retain a
-     * copy of the written {@code DBPFEntries}.
-     * <p>
-     * A customization of the {@code update} methods can easily be provided
-     * by the calling programm by using one of the {@code write} methods.
-     *
-     * @see DBPFFile
-     */
-    public static class Writer {
-
-        private Writer() {};
 
         /**
-         * Updates the given DBPF file by the {@code DBPFEntries} in {@code writeList}.
-         * <p>
-         * Any entry from the dbpfFile that has a TGI (first occurrence only) which is
-         * contained in the {@code writeList} will be replaced by the corresponding
-         * entry from the writeList. Afterwards, any remaining non-written entry from
-         * the writeList will be appended to the DBPF file.
+         * Compacts the given DBPF file, removing all the space that is not
+         * occupied by any entry, as left behind by
+         * {@link #append(DBPFFile, Collection)}, and reorders the entries.
          * <p>
-         * Any Directory file will be skipped, instead an appropriate Directory file
-         * will be appended as last entry to the DBPF file.
+         * Behaves exactly like {@link #compact(DBPFFile, Comparator, File)
+         * compact(dbpfFile, order, dbpfFile.getFile())}.
          *
          * @param dbpfFile a DBPF file. It specifies the destination location and
          *      the creation date.
-         * @param writeList a list of entries that have been updated.
+         * @param order the order of the entries, or {@code null} to retain the
+         *      order of the index.
          * @return TRUE, if successfully written; FALSE, otherwise.
          *
          * @throws IllegalStateException
-         *      if the file is not cached and the writeList contains DirectDBPFEntries
-         *      and the target file is the same as the source file,
-         *      which would result in the source file being overwritten.
+         *      if the file is not cached or a snapshot, which would result in the
+         *      source file being overwritten.
          * @throws FileNotFoundException if the file does not exist or is inaccessible.
          * @throws IOException in case of an IO issue.
+         *
+         * @see DBPFFile#getUnusedSize()
          */
-        public static boolean update(DBPFFile dbpfFile, Collection<? extends DBPFEntry> writeList) throws IllegalStateException, FileNotFoundException, IOException {
-            return update(dbpfFile, writeList, dbpfFile.getFile(), true);
+        public static boolean compact(DBPFFile dbpfFile, Comparator<? super DBPFEntry> order) throws IllegalStateException, FileNotFoundException, IOException {
+            return compact(dbpfFile, order, dbpfFile.getFile());
         }
 
         /**
-         * Takes the {@code DBPFEntries} from the given DBPF file, updates them
-         * by the entries in {@code writeList} and writes everything to a new file
-         * location, thereby preserving the creation date.
+         * Writes the entries of the given DBPF file in the given order to a
+         * new file location, thereby preserving the creation date. Only the
+         * data of the entries is copied, so any unused space in between is
+         * removed. The index and the Directory file are rebuilt while the
+         * data is streamed to the new file.
          * <p>
-         * Any entry from the dbpfFile that has a TGI (first occurrence only) which is
-         * contained in the {@code writeList} will be replaced by the corresponding
-         * entry from the writeList. Afterwards, any remaining non-written entry from
-         * the writeList will be appended to the DBPF file.
-         * <p>
-         * Any Directory file will be skipped, instead an appropriate Directory file
-         * will be appended as last entry to the DBPF file.
+         * The order is stable, so entries that are equal with respect to the
+         * order retain their order of the index. For example,
+         * {@link #TGI_ORDER} stores entries of the same type and group next to
+         * each other, and {@link #listOrder(List)} can be used to store entries
+         * in the order they are accessed.
          *
          * @param dbpfFile a DBPF file specifying the creation date.
-         * @param writeList a list of entries that have been updated.
+         * @param order the order of the entries, or {@code null} to retain the
+         *      order of the index.
          * @param newFile the new file location.
          * @return TRUE, if successfully written; FALSE, otherwise.
          *
          * @throws IllegalStateException
-         *      if the file is not cached and the writeList contains DirectDBPFEntries
-         *      and the target file is the same as the source file,
-         *      which would result in the source file being overwritten.
+         *      if the file is not cached and the target file is the same as the
+         *      source file, which would result in the source file being
+         *      overwritten.
          * @throws FileNotFoundException if the file does not exist or is inaccessible.
          * @throws IOException in case of an IO issue.
          */
-        public static boolean update(DBPFFile dbpfFile, Collection<? extends DBPFEntry> writeList, File newFile) throws IllegalStateException, FileNotFoundException, IOException {
-            return update(dbpfFile, writeList, newFile, false);
+        public static boolean compact(DBPFFile dbpfFile, Comparator<? super DBPFEntry> order, File newFile) throws IllegalStateException, FileNotFoundException, IOException {
+            return compact(dbpfFile, order, newFile, false);
         }
 
         /**
-         * Takes the {@code DBPFEntries} from the given DBPF file, updates them
-         * by the entries in {@code writeList} and writes everything to a new file
-         * location, thereby preserving the creation date if {@code preserveDateCreated}
-         * is set.
-         * <p>
-         * Any entry from the dbpfFile that has a TGI (first occurrence only) which is
-         * contained in the {@code writeList} will be replaced by the corresponding
-         * entry from the writeList. Afterwards, any remaining non-written entry from
-         * the writeList will be appended to the DBPF file.
-         * <p>
-         * Any Directory file will be skipped, instead an appropriate Directory file
-         * will be appended as last entry to the DBPF file.
+         * Writes the entries of the given DBPF file to the destination file,
+         * like {@link #compact(DBPFFile, Comparator, File)}, optionally writing
+         * the file atomically, as described in {@link Writer}.
          *
-         * @param dbpfFile a DBPF file specifying the creation date.
-         * @param writeList a list of entries that have been updated.
-         * @param newFile the new file location.
-         * @param preserveDateCreated TRUE if the creation date is to preserved, FALSE if
-         *      the current date is to be used.
+         * @param dbpfFile a DBPF file. It specifies the creation date.
+         * @param order the order of the entries, or {@code null} to retain the
+         *      order of the index.
+         * @param newFile the destination file.
+         * @param atomic TRUE to replace the destination file atomically.
          * @return TRUE, if successfully written; FALSE, otherwise.
          *
          * @throws IllegalStateException
-         *      if the file is not cached and the writeList contains DirectDBPFEntries
-         *      and the target file is the same as the source file,
-         *      which would result in the source file being overwritten.
+         *      if the file is not cached or a snapshot, or, if writing atomically,
+         *      mapped, and the destination file is the same as the source file.
          * @throws FileNotFoundException if the file does not exist or is inaccessible.
          * @throws IOException in case of an IO issue.
          */
-        public static boolean update(DBPFFile dbpfFile, Collection<? extends DBPFEntry> writeList, File newFile, boolean preserveDateCreated) throws IllegalStateException, FileNotFoundException, IOException {
-            // create map view of writeList for fast look-up
-            int writeListSize = writeList.size();
-            Map<DBPFTGI, DBPFEntry> updatedEntries =
-                    new LinkedHashMap<DBPFTGI, DBPFEntry>((int) (writeListSize / 0.75) + 1);
-            for (DBPFEntry entry : writeList) {
-                updatedEntries.put(entry.getTGI(), entry);
+        public static boolean compact(DBPFFile dbpfFile, Comparator<? super DBPFEntry> order, File newFile, boolean atomic) throws IllegalStateException, FileNotFoundException, IOException {
+            List<DBPFEntry> entries = new ArrayList<DBPFEntry>(dbpfFile.getEntries());
+            if (order != null) {
+                Collections.sort(entries, order);
             }
-            // collect all the entries to write, replaced by updated types
-            Queue<DBPFEntry> updatedWriteList =
-                    new ArrayDeque<DBPFEntry>(dbpfFile.entryMap.size() + writeListSize);
-            for (DBPFEntry entry : dbpfFile.entryMap.values()) {
-                DBPFEntry updatedEntry = updatedEntries.remove(entry.getTGI());
-                updatedWriteList.add(updatedEntry == null ? entry : updatedEntry);
+            return write(newFile, entries, dbpfFile.header.getDateCreated(), atomic);
+        }
+
+        /**
+         * Makes sure the index of the file on disk is still the one the
+         * {@code DBPFFile} was read from.
+         */
+        private static void checkHeaderUnchanged(DBPFFile dbpfFile, RandomAccessFile raf) throws IOException {
+            byte[] header = new byte[(int) DBPFFile.Header.HEADER_SIZE];
+            raf.seek(0);
+            raf.readFully(header);
+            ByteBuffer buf = ByteBuffer.wrap(header);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if ((buf.getInt(28) & 0xffffffffL) != dbpfFile.header.getDateModified() ||
+                    (buf.getInt(36) & 0xffffffffL) != dbpfFile.header.getIndexEntryCount() ||
+                    (buf.getInt(40) & 0xffffffffL) != dbpfFile.header.getIndexOffsetLocation() ||
+                    (buf.getInt(44) & 0xffffffffL) != dbpfFile.header.getIndexSize()) {
+                throw new IllegalStateException("The file has been changed since it was read: " + dbpfFile.getFile());
             }
-            // add remaining types from writeList
-            updatedWriteList.addAll(updatedEntries.values());
-            return write(newFile, updatedWriteList, preserveDateCreated ? dbpfFile.header.getDateCreated() : (System.currentTimeMillis() / 1000));
         }
 
         /**
@@ -978,7 +2610,7 @@ public class DBPFFile {
          * @throws IOException in case of an IO issue.
          */
         public static boolean write(DBPFFile dbpfFile, Collection<? extends DBPFEntry> writeList) throws IllegalStateException, FileNotFoundException, IOException {
-            return write(dbpfFile.getFile(), writeList, dbpfFile.header.getDateCreated());
+            return write(dbpfFile.getFile(), writeList, dbpfFile.header.getDateCreated(), false);
         }
 
         /**
@@ -1006,7 +2638,7 @@ public class DBPFFile {
          * @throws IOException in case of an IO issue.
          */
         public static boolean write(DBPFFile dbpfFile, Collection<? extends DBPFEntry> writeList, File newFile) throws IllegalStateException, FileNotFoundException, IOException {
-            return write(newFile, writeList, dbpfFile.header.getDateCreated());
+            return write(newFile, writeList, dbpfFile.header.getDateCreated(), false);
         }
 
         /**
@@ -1029,15 +2661,42 @@ public class DBPFFile {
          * @throws IOException in case of an IO issue.
          */
         public static boolean write(File file, Collection<? extends DBPFEntry> writeList) throws IllegalStateException, FileNotFoundException, IOException {
-            return write(file, writeList, System.currentTimeMillis() / 1000);
+            return write(file, writeList, false);
+        }
+
+        /**
+         * Writes a list of DBPFEntries to a DBPF file, like
+         * {@link #write(File, Collection)}, optionally writing the file
+         * atomically, as described in {@link Writer}.
+         *
+         * @param file the destination file.
+         * @param writeList a collection of DBPFEntries.
+         * @param atomic TRUE to replace the destination file atomically.
+         * @return TRUE, if successfully written; FALSE, otherwise.
+         *
+         * @throws IllegalStateException
+         *      if the writeList contains DirectDBPFEntries of the destination
+         *      file, which is neither cached nor a snapshot, nor, if writing
+         *      atomically, mapped.
+         * @throws FileNotFoundException if the file does not exist or is inaccessible.
+         * @throws IOException in case of an IO issue.
+         */
+        public static boolean write(File file, Collection<? extends DBPFEntry> writeList, boolean atomic) throws IllegalStateException, FileNotFoundException, IOException {
+            return write(file, writeList, System.currentTimeMillis() / 1000, atomic);
         }
 
-        private static void precludeOverwritingCollision(File file, Collection<? extends DBPFEntry> writeList) throws IllegalStateException {
+        /**
+         * In atomic writes, mapped files continue to read the previous version
+         * of the file after it has been replaced, whereas other files would
+         * read the data of the new file at their old offsets.
+         */
+        static void precludeOverwritingCollision(File file, Collection<? extends DBPFEntry> writeList, boolean atomic) throws IllegalStateException {
             for (DBPFEntry entry : writeList) {
                 if (entry instanceof DirectDBPFEntry) {
                     DirectDBPFEntry directEntry = ((DirectDBPFEntry) entry);
-                    if (!directEntry.getEnclosingDBPFFile().isCached() &&
-                            directEntry.getEnclosingDBPFFile().getFile().equals(file)) {
+                    DBPFFile source = directEntry.getEnclosingDBPFFile();
+                    if (!source.isCached() && !source.isSnapshot() && !(atomic && source.isMapped()) &&
+                            source.getFile().equals(file)) {
                         // if the dbpf file is not cached into temp memory, overwriting
                         // the same file risks bad data
                         throw new IllegalStateException("Cannot read from and write" +
@@ -1049,25 +2708,76 @@ public class DBPFFile {
             }
         }
 
-        private static boolean write(File file, Collection<? extends DBPFEntry> writeList, long dateCreated)
+        private static boolean write(File file, Collection<? extends DBPFEntry> writeList, long dateCreated, boolean atomic)
                 throws IllegalStateException, FileNotFoundException, IOException {
             // make sure not to overwrite a file we want to read from
-            precludeOverwritingCollision(file, writeList);
+            precludeOverwritingCollision(file, writeList, atomic);
+            Reader.preserveSnapshots(file);
 
+            File target = file;
+            if (atomic) {
+                File dir = file.getAbsoluteFile().getParentFile();
+                target = File.createTempFile("." + file.getName() + "_", ATOMIC_TMP_SUFFIX, dir);
+            }
             RandomAccessFile raf = null;
             FileChannel fc = null;
+            boolean success = false;
             try {
-                raf = new RandomAccessFile(file, "rw");
+                raf = new RandomAccessFile(target, "rw");
                 fc = raf.getChannel();
                 DBPFUtil.LOGGER.log(Level.INFO, "[DBPFFile.Writer] Writing {0}", file.getName());
 
                 new WriteTask(writeList, raf, fc, dateCreated).execute();
+                Reader.closeAll(fc, raf);
+                if (atomic) {
+                    Files.move(target.toPath(), file.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    forceDirectory(file.getAbsoluteFile().getParentFile());
+                }
+                success = true;
             } finally {
                 Reader.closeAll(fc, raf);
+                if (atomic && !success) {
+                    target.delete();
+                }
             }
             return true;
         }
 
+        /**
+         * Persists the rename of a file, where supported by the platform.
+         */
+        private static void forceDirectory(File dir) {
+            FileChannel fc = null;
+            try {
+                fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+                fc.force(true);
+            } catch (IOException e) {
+                // directories cannot be opened on every platform
+                DBPFUtil.LOGGER.log(Level.FINE, "[DBPFFile.Writer] Cannot force directory: " + dir, e);
+            } finally {
+                if (fc != null) {
+                    try {
+                        fc.close();
+                    } catch (IOException e) {
+                        DBPFUtil.LOGGER.log(Level.FINE, "[DBPFFile.Writer] Cannot close directory: " + dir, e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * An entry that reads the data of another entry, such that the
+         * compression metadata of the other entry applies to it.
+         */
+        static interface WrappedEntry {
+
+            /**
+             * @return the entry the data is read from.
+             */
+            public DBPFEntry getWrappedEntry();
+        }
+
         private static class WriteTask {
 
             private static final int COMPRESSION_HEADER_LENGTH = 9;
@@ -1083,15 +2793,29 @@ public class DBPFFile {
             private final Queue<WriteListData> indexData;
             private final ByteBuffer headerBuf;
             private boolean executed = false;
+            // for appending, the entries that remain in place, mapped to their decompressed size or -1
+            private final boolean append;
+            private final Map<DBPFEntry, Long> inPlace;
 
             public WriteTask(Collection<? extends DBPFEntry> writeList, RandomAccessFile raf, FileChannel fc, long dateCreated) throws IOException {
+                this(writeList, raf, fc, dateCreated, DBPFFile.Header.HEADER_SIZE, null);
+            }
+
+            /**
+             * Creates a task that appends to an existing file at the given
+             * offset if {@code inPlace} is not null.
+             */
+            public WriteTask(Collection<? extends DBPFEntry> writeList, RandomAccessFile raf, FileChannel fc, long dateCreated,
+                    long startOffset, Map<DBPFEntry, Long> inPlace) throws IOException {
                 this.writeList = writeList;
                 this.raf = raf;
                 this.fc = fc;
                 this.dateCreated = dateCreated;
+                this.append = inPlace != null;
+                this.inPlace = inPlace;
                 buf = ByteBuffer.allocate(BUFFER_SIZE);
                 buf.order(ByteOrder.LITTLE_ENDIAN);
-                indexOffsetLocation = DBPFFile.Header.HEADER_SIZE;
+                indexOffsetLocation = startOffset;
 
                 dirData = new ArrayDeque<DirListData>();
                 indexData = new ArrayDeque<WriteListData>();
@@ -1104,14 +2828,22 @@ public class DBPFFile {
                 }
                 executed = true;
 
-                this.writeHeader();
+                if (append) {
+                    fc.position(indexOffsetLocation);
+                } else {
+                    this.writeHeader();
+                }
                 // Write rawData, remember offset position and store length
                 // Also remember information about compressed files for directory file
                 for (DBPFEntry entry : writeList) {
                     if (entry.getTGI().matches(DBPFTGI.DIRECTORY)) {
                         continue;
                     }
-                    transferData(entry);
+                    if (append && inPlace.containsKey(entry)) {
+                        indexInPlace((DirectDBPFEntry) entry, inPlace.get(entry));
+                    } else {
+                        transferData(entry);
+                    }
                 }
                 // build directory file
                 if (!dirData.isEmpty()) {
@@ -1121,10 +2853,25 @@ public class DBPFFile {
                 flushBuffer();
 
                 writeIndex();
+                if (append) {
+                    // the new data must be complete before the header points to it
+                    fc.force(false);
+                }
                 updateHeader();
                 fc.force(false);
             }
 
+            private void indexInPlace(DirectDBPFEntry entry, long decompressedSize) {
+                if (decompressedSize >= 0) {
+                    DirListData dataEntry = new DirListData(entry.offset,
+                            entry.size, decompressedSize, entry.getTGI());
+                    dirData.add(dataEntry);
+                    indexData.add(dataEntry);
+                } else {
+                    indexData.add(new WriteListData(entry.offset, entry.size, entry.getTGI()));
+                }
+            }
+
             private void flushBuffer() throws IOException {
                 buf.flip();
                 while (buf.hasRemaining()) {
@@ -1174,9 +2921,13 @@ public class DBPFFile {
                         throw new NullPointerException("Data channel was null for TGI: " + entry.getTGI());
                     } // else
 
+                    // the compression of entries from a Directory file need not be sniffed
+                    DBPFEntry source = entry instanceof WrappedEntry ? ((WrappedEntry) entry).getWrappedEntry() : entry;
+                    DirectDBPFEntry known = source instanceof DirectDBPFEntry &&
+                            ((DirectDBPFEntry) source).isCompressionKnown() ? (DirectDBPFEntry) source : null;
                     boolean tooShort = false; // for compression
                     int pos = 0;
-                    {
+                    if (known == null) {
                         // read first nine bytes to determine possible compression
                         headerBuf.clear();
                         for (int count = 0; headerBuf.hasRemaining() && count != -1; ) {
@@ -1208,7 +2959,16 @@ public class DBPFFile {
                     size = pos;
 
                     // create Dir and Index Table Data
-                    if (!tooShort && DBPFPackager.isCompressed(headerBuf.array())) {
+                    if (known != null) {
+                        if (known.isCompressed()) {
+                            DirListData dataEntry = new DirListData(indexOffsetLocation,
+                                    size, known.getDecompressedSize(), entry.getTGI());
+                            dirData.add(dataEntry);
+                            indexData.add(dataEntry);
+                        } else {
+                            indexData.add(new WriteListData(indexOffsetLocation, size, entry.getTGI()));
+                        }
+                    } else if (!tooShort && DBPFPackager.isCompressed(headerBuf.array())) {
                         DirListData dataEntry = new DirListData(indexOffsetLocation,
                                 size, DBPFPackager.getDecompressedSize(headerBuf.array()), entry.getTGI());
                         dirData.add(dataEntry);
@@ -1255,7 +3015,13 @@ public class DBPFFile {
                 // Update index entry count, location and size
                 int indexEntryCount = indexData.size();
                 long indexSize = 5 * 4 * indexEntryCount;
-                fc.position(36);
+                if (append) {
+                    fc.position(28);
+                    buf.putInt((int) (System.currentTimeMillis() / 1000)); // dateModified
+                    buf.putInt(7); // indexType
+                } else {
+                    fc.position(36);
+                }
                 buf.putInt(indexEntryCount);
                 buf.putInt((int) indexOffsetLocation);
                 buf.putInt((int) indexSize);
@@ -1301,6 +3067,10 @@ public class DBPFFile {
         private final long offset;
         private final long size;
         private final long index;
+        // compression metadata, from the Directory file or from the data
+        private volatile boolean compressionKnown = false;
+        private boolean compressed = false;
+        private long decompressedSize;
 
         /**
          * Creates a DBPFEntry.
@@ -1315,6 +3085,88 @@ public class DBPFFile {
             this.offset = offset;
             this.size = size;
             this.index = index;
+            this.decompressedSize = size;
+        }
+
+        private void setCompression(boolean compressed, long decompressedSize) {
+            this.compressed = compressed;
+            this.decompressedSize = decompressedSize;
+            this.compressionKnown = true;
+        }
+
+        /**
+         * Specifies whether the compression of this entry is known without
+         * reading its data, which is the case if the enclosing file contains a
+         * Directory file, or if {@link #isCompressed()} has been called before.
+         *
+         * @return TRUE if the compression is known, FALSE otherwise.
+         */
+        public boolean isCompressionKnown() {
+            return this.compressionKnown;
+        }
+
+        /**
+         * Specifies whether the data of this entry is compressed. This is
+         * determined by the Directory file of the enclosing file, if present,
+         * which lists all the compressed entries. Otherwise, the header of
+         * the data is read once.
+         *
+         * @return TRUE if the data is compressed, FALSE otherwise or if the
+         *      data cannot be read.
+         * @throws IllegalStateException if the compression is not known yet
+         *      and the enclosing {@code DBPFFile} has been closed.
+         *
+         * @see #isCompressionKnown()
+         */
+        public boolean isCompressed() {
+            this.loadCompression();
+            return this.compressed;
+        }
+
+        /**
+         * Returns the size of the data of this entry when decompressed, which
+         * is the size of the buffer required for decompressing it. For data
+         * that is not compressed, this is the size of the data.
+         *
+         * @return the decompressed size.
+         * @throws IllegalStateException if the compression is not known yet
+         *      and the enclosing {@code DBPFFile} has been closed.
+         *
+         * @see #isCompressed()
+         */
+        public long getDecompressedSize() {
+            this.loadCompression();
+            return this.decompressedSize;
+        }
+
+        private void loadCompression() {
+            if (this.compressionKnown) {
+                return;
+            }
+            byte[] header = new byte[Writer.WriteTask.COMPRESSION_HEADER_LENGTH];
+            ReadableByteChannel src = this.createDataChannel();
+            if (src == null) {
+                return;
+            }
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(header);
+                for (int count = 0; buf.hasRemaining() && count != -1; ) {
+                    count = src.read(buf);
+                }
+                if (!buf.hasRemaining() && DBPFPackager.isCompressed(header)) {
+                    this.setCompression(true, DBPFPackager.getDecompressedSize(header));
+                } else {
+                    this.setCompression(false, this.size);
+                }
+            } catch (IOException e) {
+                DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] IOException for file: " + getFile(), e);
+            } finally {
+                try {
+                    src.close();
+                } catch (IOException e) {
+                    DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] IOException for file: " + getFile(), e);
+                }
+            }
         }
 
 //        /**
@@ -1591,46 +3443,138 @@ public class DBPFFile {
             return null;
         }
 
+        /**
+         * {@inheritDoc}
+         *
+         * @throws IllegalStateException if the enclosing {@code DBPFFile}
+         *      has been closed.
+         */
         @Override
         public byte[] createData() {
             int len = (int) this.size;
             byte[] data = new byte[len];
-            if (DBPFFile.this.isMapped()) {
-                try {
-                    mappedByteBuffer.position((int) this.offset);
-                    mappedByteBuffer.get(data);
-                } catch (BufferUnderflowException e) {
-                    DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] BufferUnderflowException for file: " + getFile() + ", entry index: " + this.index, e);
-                    return null;
-                }
-            } else {
-                RandomAccessFile raf = null;
-                try {
-                    raf = new RandomAccessFile(getFile(), "r");
-                    raf.seek(this.offset);
-                    raf.readFully(data);
-                } catch (FileNotFoundException e) {
-                    DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] File not found: " + getFile(), e);
-                    return null;
-                } catch (IOException e) {
-                    DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] IOException for file: " + getFile(), e);
-                    return null;
-                } finally {
-                    if (raf != null) {
-                        try {
-                            raf.close();
-                        } catch (IOException e) {
-                            DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] IOException for file: " + getFile(), e);
-                            return null;
+            DBPFFile.this.mappingLock.readLock().lock();
+            try {
+                DBPFFile.this.checkOpen();
+                if (DBPFFile.this.isMapped()) {
+                    try {
+                        DBPFFile.this.mapping.read(this.offset, data, 0, len);
+                    } catch (BufferUnderflowException e) {
+                        DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] BufferUnderflowException for file: " + getFile() + ", entry index: " + this.index, e);
+                        return null;
+                    } catch (IOException e) {
+                        DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] IOException for file: " + getFile(), e);
+                        return null;
+                    }
+                } else {
+                    RandomAccessFile raf = null;
+                    try {
+                        raf = new RandomAccessFile(getDataFile(), "r");
+                        raf.seek(this.offset);
+                        raf.readFully(data);
+                    } catch (FileNotFoundException e) {
+                        DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] File not found: " + getFile(), e);
+                        return null;
+                    } catch (IOException e) {
+                        DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] IOException for file: " + getFile(), e);
+                        return null;
+                    } finally {
+                        if (raf != null) {
+                            try {
+                                raf.close();
+                            } catch (IOException e) {
+                                DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFFile.Converter] IOException for file: " + getFile(), e);
+                                return null;
+                            }
                         }
                     }
                 }
+            } finally {
+                DBPFFile.this.mappingLock.readLock().unlock();
             }
             return data;
         }
 
+        /**
+         * Reads the data of this entry asynchronously, without blocking the
+         * current thread. The reads of all the entries of the enclosing
+         * {@code DBPFFile} share a single channel, which is opened on demand,
+         * or which was opened by {@link Reader#readAsync(File, ExecutorService)}.
+         * <p>
+         * If the enclosing file is mapped or is a lazy snapshot, the data is
+         * read in the current thread, instead, and the returned future is
+         * completed already.
+         *
+         * @return the future data. Its {@code get} method throws an
+         *      {@link ExecutionException} caused by an {@link IOException} in
+         *      case of an IO issue.
+         * @throws IllegalStateException if the enclosing {@code DBPFFile}
+         *      has been closed.
+         */
+        public Future<byte[]> createDataAsync() {
+            return this.createDataAsync(null, null);
+        }
+
+        /**
+         * Reads the data of this entry asynchronously, like
+         * {@link #createDataAsync()}, and additionally notifies the handler
+         * upon completion.
+         *
+         * @param attachment the object to pass to the handler.
+         * @param handler the handler, or {@code null}.
+         * @return the future data.
+         * @throws IllegalStateException if the enclosing {@code DBPFFile}
+         *      has been closed.
+         */
+        public <A> Future<byte[]> createDataAsync(A attachment, CompletionHandler<byte[], ? super A> handler) {
+            final AsyncResult<byte[], A> result = new AsyncResult<byte[], A>(attachment, handler);
+            if (DBPFFile.this.isMapped() || DBPFFile.this.isSnapshot()) {
+                // reading from memory does not block, and snapshots must be
+                // read under the lock; createData checks whether the file is open
+                byte[] data = this.createData();
+                if (data != null) {
+                    result.completed(data, null);
+                } else {
+                    result.failed(new IOException("Could not read entry: " + this), null);
+                }
+                return result;
+            }
+            DBPFFile.this.checkOpen();
+            AsynchronousFileChannel channel;
+            try {
+                channel = DBPFFile.this.getAsyncChannel();
+            } catch (IOException e) {
+                result.failed(e, null);
+                return result;
+            }
+            Reader.readFully(channel, ByteBuffer.allocate((int) this.size), this.offset, new CompletionHandler<ByteBuffer, Void>() {
+                @Override
+                public void completed(ByteBuffer buf, Void ignored) {
+                    result.completed(buf.array(), null);
+                }
+
+                @Override
+                public void failed(Throwable exc, Void ignored) {
+                    result.failed(exc, null);
+                }
+            });
+            return result;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * @throws IllegalStateException if the enclosing {@code DBPFFile}
+         *      has been closed.
+         */
         @Override
         public ReadableByteChannel createDataChannel() {
+            DBPFFile.this.mappingLock.readLock().lock();
+            try {
+                DBPFFile.this.checkOpen();
+            } finally {
+                DBPFFile.this.mappingLock.readLock().unlock();
+            }
             try {
                 return new DirectReadableByteChannel();
             } catch (FileNotFoundException e) {
@@ -1643,41 +3587,56 @@ public class DBPFFile {
         }
 
         /**
-         * Reads directly from the file on the disk or from the mapped byte buffer.
+         * Reads directly from the file on the disk or from the mapping.
          */
         private class DirectReadableByteChannel implements ReadableByteChannel {
 
+            // snapshots are checked for changes on disk after reading this many bytes, and at the end
+            private static final int CHANGE_CHECK_INTERVAL = 1 << 20;
+
             private boolean isClosed = false;
             private final boolean isMapped;
 
             private final long offset = DirectDBPFEntry.this.offset;
             private final long size = DirectDBPFEntry.this.size;
             private long pos = 0;
+            // the position at which snapshots were last checked for changes on disk
+            private long checkedPos = 0;
 
-            private ByteBuffer buf;
-            private final RandomAccessFile raf;
-            private final FileChannel fc;
+            private final Mapping source;
+            private File dataFile;
+            private RandomAccessFile raf;
+            private FileChannel fc;
 
             private DirectReadableByteChannel() throws FileNotFoundException, IOException {
-                if (DBPFFile.this.isMapped()) {
-                    buf = DBPFFile.this.mappedByteBuffer.asReadOnlyBuffer();
-                    buf.position((int) offset);
+                source = DBPFFile.this.mapping;
+                if (source != null) {
                     isMapped = true;
                     raf = null;
                     fc = null;
                 } else {
-                    buf = null;
                     isMapped = false;
-                    raf = new RandomAccessFile(DBPFFile.this.getFile(), "r");
-                    fc = raf.getChannel();
-                    fc.position(offset);
+                    open(offset);
+                }
+            }
+
+            private void checkUnchanged() throws IOException {
+                this.checkedPos = this.pos;
+                if (DBPFFile.this.isChangedOnDisk()) {
+                    throw new IOException("DBPF file has been changed on disk: " + DBPFFile.this.getFile());
                 }
             }
 
+            private void open(long position) throws FileNotFoundException, IOException {
+                dataFile = DBPFFile.this.getDataFile();
+                raf = new RandomAccessFile(dataFile, "r");
+                fc = raf.getChannel();
+                fc.position(position);
+            }
+
             @Override
             public void close() throws IOException {
                 this.isClosed = true;
-                buf = null;
                 if (fc != null) {
                     fc.close();
                 }
@@ -1694,10 +3653,17 @@ public class DBPFFile {
             @Override
             public int read(ByteBuffer dst) throws IOException {
                 // exceptional cases
-                if (this.isClosed) {
+                if (this.isClosed || DBPFFile.this.closed) {
                     throw new ClosedChannelException();
                 }
                 if (this.pos == this.size) {
+                    // the data read so far is only consistent if the file is unchanged
+                    DBPFFile.this.mappingLock.readLock().lock();
+                    try {
+                        this.checkUnchanged();
+                    } finally {
+                        DBPFFile.this.mappingLock.readLock().unlock();
+                    }
                     return -1;
                 } else if (this.pos > this.size) {
                     throw new IOException("Too many bytes were read for entry: " +
@@ -1709,23 +3675,45 @@ public class DBPFFile {
 
                 // actual reading
                 if (this.isMapped) {
-                    int min = (int) Math.min(dst.remaining(), size - pos);
-                    buf.get(dst.array(), dst.position(), min);
-                    pos += min;
-                    //System.out.printf("pos %d min %d size %d cap %d%n", pos, min, size, dst.capacity());
-                    dst.position(dst.position() + min);
-                    return min;
+                    DBPFFile.this.mappingLock.readLock().lock();
+                    try {
+                        // the buffer must not be touched once it has been unmapped
+                        if (DBPFFile.this.mapping != source) {
+                            throw new ClosedChannelException();
+                        }
+                        int min = (int) Math.min(dst.remaining(), size - pos);
+                        source.read(offset + pos, dst.array(), dst.arrayOffset() + dst.position(), min);
+                        pos += min;
+                        //System.out.printf("pos %d min %d size %d cap %d%n", pos, min, size, dst.capacity());
+                        dst.position(dst.position() + min);
+                        return min;
+                    } finally {
+                        DBPFFile.this.mappingLock.readLock().unlock();
+                    }
                 } else {
-                    int count = fc.read(dst);
-                    pos += count;
-                    //System.out.printf("pos %d count %d size %d cap %d position %d%n", pos, count, size, dst.capacity(), dst.position());
-                    if (pos > size) { // overflow
-                        dst.position(dst.position() - (int) (pos - size));
-                        fc.position(offset + size);
-                        count -= (int) (pos - size);
-                        pos = size;
+                    DBPFFile.this.mappingLock.readLock().lock();
+                    try {
+                        if (this.pos - this.checkedPos >= CHANGE_CHECK_INTERVAL) {
+                            this.checkUnchanged();
+                        }
+                        if (DBPFFile.this.getDataFile() != dataFile) {
+                            // the data of the snapshot has been preserved in the meantime
+                            Reader.closeAll(fc, raf);
+                            open(offset + pos);
+                        }
+                        int count = fc.read(dst);
+                        pos += count;
+                        //System.out.printf("pos %d count %d size %d cap %d position %d%n", pos, count, size, dst.capacity(), dst.position());
+                        if (pos > size) { // overflow
+                            dst.position(dst.position() - (int) (pos - size));
+                            fc.position(offset + size);
+                            count -= (int) (pos - size);
+                            pos = size;
+                        }
+                        return count;
+                    } finally {
+                        DBPFFile.this.mappingLock.readLock().unlock();
                     }
-                    return count;
                 }
             }
         }
@@ -1,7 +1,10 @@
 package jdbpfx;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayDeque;
+import java.util.Map;
 import java.util.Queue;
+import java.util.WeakHashMap;
 
 import jdbpfx.util.DBPFUtil;
 
@@ -9,7 +12,8 @@ import jdbpfx.util.DBPFUtil;
  * The {@code DBPFTGI} class encapsulates a type, group and instance identifier.
  * TGI objects are immutable and can be obtained by a call to the static factory
  * method {@link #valueOf}. Each component is limited to 32 bits or the null
- * value -1 (used as a mask in certain functions).
+ * value -1 (used as a mask in certain functions). Identical TGIs may share a
+ * single instance, see {@link #intern()}.
  * <p>
  * The method {@link DBPFTGI#matches(DBPFTGI)} may be used to determine
  * whether a TGI matches a particular format, that is, a known file type.
@@ -22,18 +26,36 @@ import jdbpfx.util.DBPFUtil;
  */
 public class DBPFTGI {
 
-    private final long type;
-    private final long group;
-    private final long instance;
+    private static final byte TYPE_NULL = 0x1;
+    private static final byte GROUP_NULL = 0x2;
+    private static final byte INSTANCE_NULL = 0x4;
+
+    /**
+     * Canonical TGI instances. The values are weak references to the keys
+     * themselves, so that unused TGIs can be garbage collected.
+     */
+    private static final Map<DBPFTGI, WeakReference<DBPFTGI>> internPool =
+            new WeakHashMap<DBPFTGI, WeakReference<DBPFTGI>>();
+    private static volatile boolean interning = false;
+
+    // the components are packed into 32 bits each; since 0xFFFFFFFF is a
+    // valid identifier, the null values -1 are tracked separately
+    private final int type;
+    private final int group;
+    private final int instance;
+    private final byte nullMask;
+    private final int hash;
 
     /**
      * Static factory method that returns a {@code DBPFTGI} object. Components
-     * are stored as longs to avoid sign problems. -1 can be used as {@code null}
+     * are returned as longs to avoid sign problems. -1 can be used as {@code null}
      * value.
      * <p>
      * Whether two TGIs {@code tgi1} and {@code tgi2} returned by this method that
      * satisfy {@code tgi1.equals(tgi2)} will also satisfy {@code tgi1 == tgi2}
-     * is unspecified.
+     * is unspecified, unless interning has been enabled via
+     * {@link #setInterning(boolean)}, in which case the canonical instance
+     * is returned, as by {@link #intern()}.
      *
      * @param type 32-bit type identifier.
      * @param group 32-bit group identifier.
@@ -41,11 +63,63 @@ public class DBPFTGI {
      * @return a TGI object.
      */
     public static DBPFTGI valueOf(long type, long group, long instance) {
-        return new DBPFTGI(type, group, instance);
+        DBPFTGI tgi = new DBPFTGI(type, group, instance);
+        return interning ? tgi.intern() : tgi;
+    }
+
+    /**
+     * Enables or disables the interning of the TGIs returned by
+     * {@link #valueOf}. This is disabled by default.
+     * <p>
+     * If enabled, identical TGIs, for example those read from the index tables
+     * of many DBPF files, share a single instance, which saves memory and
+     * makes {@link #equals} checks of identical TGIs an identity comparison.
+     * Canonical instances that are no longer referenced are garbage collected.
+     *
+     * @param enabled TRUE to enable interning, FALSE to disable it.
+     *
+     * @see #intern()
+     */
+    public static void setInterning(boolean enabled) {
+        interning = enabled;
+    }
+
+    /**
+     * @return TRUE if TGIs returned by {@link #valueOf} are interned.
+     *
+     * @see #setInterning(boolean)
+     */
+    public static boolean isInterning() {
+        return interning;
+    }
+
+    /**
+     * Returns a canonical representation of this TGI, in the manner of
+     * {@link String#intern()}. For any two TGIs {@code tgi1} and {@code tgi2},
+     * {@code tgi1.intern() == tgi2.intern()} holds if and only if
+     * {@code tgi1.equals(tgi2)}.
+     * <p>
+     * This method may be used regardless of whether {@link #setInterning(boolean)
+     * interning} is enabled. It is thread-safe.
+     *
+     * @return the canonical TGI equal to this TGI.
+     */
+    public DBPFTGI intern() {
+        synchronized (internPool) {
+            WeakReference<DBPFTGI> ref = internPool.get(this);
+            DBPFTGI canonical = ref != null ? ref.get() : null;
+            if (canonical == null) {
+                // labeled masks are not handed out as canonical instances
+                canonical = this.getClass() == DBPFTGI.class ? this :
+                        new DBPFTGI(this.getType(), this.getGroup(), this.getInstance());
+                internPool.put(canonical, new WeakReference<DBPFTGI>(canonical));
+            }
+            return canonical;
+        }
     }
 
     /**
-     * Creates a TGI. Components are stored as longs to avoid sign problems.
+     * Creates a TGI. Components are passed as longs to avoid sign problems.
      * -1 can be used as {@code null} value.
      *
      * @param type 32-bit type identifier.
@@ -53,41 +127,40 @@ public class DBPFTGI {
      * @param instance 32-bit instance identifier.
      */
     private DBPFTGI(long type, long group, long instance) {
-        if(type >= -1L && type <= 0xFFFFFFFFL)
-            this.type = type;
-        else
-            this.type = -1L;
-
-        if(group >= -1L && group <= 0xFFFFFFFFL)
-            this.group = group;
-        else
-            this.group = -1L;
-
-        if(instance >= -1L && instance <= 0xFFFFFFFFL)
-            this.instance = instance;
-        else
-            this.instance = -1L;
+        byte nullMask = 0;
+        if(!(type >= 0L && type <= 0xFFFFFFFFL))
+            nullMask |= TYPE_NULL;
+        if(!(group >= 0L && group <= 0xFFFFFFFFL))
+            nullMask |= GROUP_NULL;
+        if(!(instance >= 0L && instance <= 0xFFFFFFFFL))
+            nullMask |= INSTANCE_NULL;
+        this.nullMask = nullMask;
+        this.type = (nullMask & TYPE_NULL) != 0 ? -1 : (int) type;
+        this.group = (nullMask & GROUP_NULL) != 0 ? -1 : (int) group;
+        this.instance = (nullMask & INSTANCE_NULL) != 0 ? -1 : (int) instance;
+        long h = this.longHashCode();
+        this.hash = (int) (h ^ (h >>> 32));
     }
 
     /**
      * @return The type identifier.
      */
     public long getType() {
-        return this.type;
+        return (nullMask & TYPE_NULL) != 0 ? -1L : this.type & 0xFFFFFFFFL;
     }
 
     /**
      * @return The group identifier.
      */
     public long getGroup() {
-        return this.group;
+        return (nullMask & GROUP_NULL) != 0 ? -1L : this.group & 0xFFFFFFFFL;
     }
 
     /**
      * @return The instance identifier.
      */
     public long getInstance() {
-        return this.instance;
+        return (nullMask & INSTANCE_NULL) != 0 ? -1L : this.instance & 0xFFFFFFFFL;
     }
 
     /**
@@ -109,28 +182,28 @@ public class DBPFTGI {
      * @return TRUE if the type identifier of this TGI is null (-1L).
      */
     public boolean isTypeNull() {
-        return this.type == -1L;
+        return (nullMask & TYPE_NULL) != 0;
     }
 
     /**
      * @return TRUE if the group identifier of this TGI is null (-1L).
      */
     public boolean isGroupNull() {
-        return this.group == -1L;
+        return (nullMask & GROUP_NULL) != 0;
     }
 
     /**
      * @return TRUE if the instance identifier of this TGI is null (-1L).
      */
     public boolean isInstanceNull() {
-        return this.instance == -1L;
+        return (nullMask & INSTANCE_NULL) != 0;
     }
 
     /**
      * @return TRUE if any component of this TGI is null (-1L).
      */
     public boolean hasNullID() {
-        return isTypeNull() || isGroupNull() || isInstanceNull();
+        return nullMask != 0;
     }
 
     /**
@@ -143,35 +216,63 @@ public class DBPFTGI {
      */
     @Override
     public final boolean equals(Object obj) {
-        if(obj instanceof DBPFTGI) {
+        if(this == obj) {
+            return true;
+        } else if(obj instanceof DBPFTGI) {
             DBPFTGI tgiObj = (DBPFTGI) obj;
             return this.type == tgiObj.type &&
                     this.group == tgiObj.group &&
-                    this.instance == tgiObj.instance;
+                    this.instance == tgiObj.instance &&
+                    this.nullMask == tgiObj.nullMask;
         } else {
             return false;
         }
     }
 
+    /**
+     * Returns a well-distributed hash code of this TGI, derived from
+     * {@link #longHashCode()}.
+     */
     @Override
     public final int hashCode() {
-        final int prime = 4229;
-        int result = 1;
-        result = prime * result + (int) type;
-        result = prime * result + (int) instance;
-        result = prime * result + (int) group;
-        return result;
+        return hash;
+    }
+
+    /**
+     * Returns a 64-bit hash code of this TGI, in accordance with
+     * {@link #equals equals}. All the bits of the components are mixed
+     * into all the bits of the hash code, using the finalization step of
+     * MurmurHash3, so TGIs that differ in only a few bits of a
+     * single component (for example, consecutive instance IDs of the same
+     * type and group) are spread evenly. This makes it suitable for hash
+     * tables and external indexes that use the hash code directly.
+     *
+     * @return the 64-bit hash code.
+     */
+    public final long longHashCode() {
+        long h = ((long) type << 32) | (group & 0xFFFFFFFFL);
+        long i = ((long) nullMask << 32) | (instance & 0xFFFFFFFFL);
+        return mix64(h ^ mix64(i + 0x9E3779B97F4A7C15L));
+    }
+
+    private static long mix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+        return k;
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("T:");
-        sb.append(DBPFUtil.toHex(type, 8));
+        sb.append(DBPFUtil.toHex(getType(), 8));
         sb.append(", G:");
-        sb.append(DBPFUtil.toHex(group, 8));
+        sb.append(DBPFUtil.toHex(getGroup(), 8));
         sb.append(", I:");
-        sb.append(DBPFUtil.toHex(instance, 8));
+        sb.append(DBPFUtil.toHex(getInstance(), 8));
         return sb.toString();
     }
 
@@ -190,9 +291,11 @@ public class DBPFTGI {
      * @return TRUE, if the check passes; FALSE, otherwise.
      */
     public boolean matches(DBPFTGI tgiMask) {
-        boolean tidOK = (tgiMask.isTypeNull()) || (type == tgiMask.getType());
-        boolean gidOK = (tgiMask.isGroupNull()) || (group == tgiMask.getGroup());
-        boolean iidOK = (tgiMask.isInstanceNull()) || (instance == tgiMask.getInstance());
+        // a null component of this TGI only matches a null component of the mask
+        int nullMismatch = this.nullMask & ~tgiMask.nullMask;
+        boolean tidOK = (tgiMask.isTypeNull()) || (type == tgiMask.type && (nullMismatch & TYPE_NULL) == 0);
+        boolean gidOK = (tgiMask.isGroupNull()) || (group == tgiMask.group && (nullMismatch & GROUP_NULL) == 0);
+        boolean iidOK = (tgiMask.isInstanceNull()) || (instance == tgiMask.instance && (nullMismatch & INSTANCE_NULL) == 0);
         return tidOK && gidOK && iidOK;
     }
 
@@ -230,9 +333,9 @@ public class DBPFTGI {
      * @return a DBPFTGI object with the modified fields.
      */
     public DBPFTGI modifyTGI(long t, long g, long i) {
-        return DBPFTGI.valueOf(t == -1L ? this.type : t,
-                               g == -1L ? this.group : g,
-                               i == -1L ? this.instance : i);
+        return DBPFTGI.valueOf(t == -1L ? this.getType() : t,
+                               g == -1L ? this.getGroup() : g,
+                               i == -1L ? this.getInstance() : i);
     }
 
     /** BLANKTGI <p> (0, 0, 0) */
@@ -2,16 +2,23 @@ package jdbpfx.properties;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 
 import jdbpfx.util.DBPFUtil;
+import jdbpfx.util.TextScanner;
 
 /**
  * @author Jon
  */
 public abstract class DBPFProperty {
 
+    // values() copies the array on every call
+    private static final DBPFPropertyType[] TYPES = DBPFPropertyType.values();
+
     protected long id;
     protected int count;
     protected DBPFPropertyType dataType;
@@ -200,71 +207,137 @@ public abstract class DBPFProperty {
      * @param propString
      *            The property string
      * @return The DBPFProperty or NULL, if not known
+     *
+     * @see #decodeTextProperty(byte[], int, int)
      */
     public static DBPFProperty decodeProperty(String propString) {
-        String[] tokens = propString.split("=");
+        byte[] data = propString.getBytes(StandardCharsets.ISO_8859_1);
+        return decodeTextProperty(data, 0, data.length);
+    }
 
-        // now analyze the nameValue
-        String[] nameValues = tokens[0].split(":");
-        long id = Long.decode(nameValues[0]);
+    /**
+     * Decodes the property from a line of text-format (0x54) data, e.g.:<br>
+     * 0x00000010:{"Exemplar Type"}=Uint32:0:{0x00000002}
+     * <p>
+     * The values are parsed directly from the data, without creating
+     * intermediate strings for the individual tokens.
+     *
+     * @param data
+     *            The data
+     * @param start
+     *            The start index of the line (inclusive)
+     * @param end
+     *            The end index of the line (exclusive)
+     * @return The property or NULL, if cannot decoded
+     */
+    public static DBPFProperty decodeTextProperty(byte[] data, int start, int end) {
+        int eq = TextScanner.indexOf(data, '=', start, end);
+        int typeEnd = eq == -1 ? -1 : TextScanner.indexOf(data, ':', eq + 1, end);
+        int countEnd = typeEnd == -1 ? -1 : TextScanner.indexOf(data, ':', typeEnd + 1, end);
+        if (countEnd == -1) {
+            DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFProperty] Property line not valid: {0}",
+                    new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+            return null;
+        }
 
-        // System.out.println(DBPFUtil.toHex(nameValue, 8));
+        // now analyze the nameValue
+        int idEnd = TextScanner.indexOf(data, ':', start, eq);
+        long id = TextScanner.parseLong(data, start, idEnd == -1 ? eq : idEnd);
 
         // now analyze the value
-        String[] propValues = tokens[1].split(":");
-        DBPFPropertyType type = DBPFPropertyType.valueOf(propValues[0].toUpperCase());
+        DBPFPropertyType type = null;
+        for (DBPFPropertyType t : TYPES) {
+            if (TextScanner.equalsIgnoreCase(data, eq + 1, typeEnd, t.name)) {
+                type = t;
+                break;
+            }
+        }
+        if (type == null) {
+            DBPFUtil.LOGGER.log(Level.SEVERE, "[DBPFProperty] Property Type not valid: id = 0x{0}, type = {1}", new Object[]{
+                    DBPFUtil.toHex(id, 8), new String(data, eq + 1, typeEnd - eq - 1, StandardCharsets.ISO_8859_1)});
+            return null;
+        }
 
-        int count = Integer.parseInt(propValues[1]);
+        int count = (int) TextScanner.parseLong(data, typeEnd + 1, countEnd);
         if (count == 0) {
             count = -1;
         }
-        String s = propValues[2];
-        s = s.replace('{', ' ');
-        s = s.replace('}', ' ');
-        s = s.replace('\"', ' ');
-        String[] data = s.trim().split(",");
+
+        // the values are enclosed in braces
+        int pos = TextScanner.indexOf(data, '{', countEnd + 1, end);
+        pos = pos == -1 ? countEnd + 1 : pos + 1;
+        int valuesEnd = TextScanner.lastIndexOf(data, '}', pos, end);
+        if (valuesEnd == -1) {
+            valuesEnd = end;
+        }
 
         DBPFProperty prop = null;
 
         switch(type) {
-            case STRING:
-                prop = new DBPFStringProperty(data[0].trim());
+            case STRING: {
+                int quote = TextScanner.indexOf(data, '\"', pos, valuesEnd);
+                int lastQuote = TextScanner.lastIndexOf(data, '\"', pos, valuesEnd);
+                if (quote != -1 && lastQuote > quote) {
+                    pos = quote + 1;
+                    valuesEnd = lastQuote;
+                }
+                pos = TextScanner.trimStart(data, pos, valuesEnd);
+                valuesEnd = TextScanner.trimEnd(data, pos, valuesEnd);
+                prop = new DBPFStringProperty(new String(data, pos, valuesEnd - pos, StandardCharsets.ISO_8859_1));
                 break;
-            case FLOAT32:
+            }
+            case FLOAT32: {
+                Float[] values = new Float[Math.abs(count)];
+                for(int x=0;x<values.length;x++) {
+                    int next = nextValueEnd(data, pos, valuesEnd);
+                    float value = 0f;
+                    if (pos < valuesEnd) {
+                        try {
+                            value = TextScanner.parseFloat(data, pos, next);
+                        } catch (NumberFormatException e) {
+                            value = 0f;
+                        }
+                    }
+                    values[x] = value;
+                    pos = next + 1;
+                }
                 if(count == -1) {
-                    prop = new DBPFFloatProperty(Float.valueOf(data[0].trim()));
+                    prop = new DBPFFloatProperty(values[0]);
                 } else {
-                    Float[] values = new Float[count];
-                    for(int x=0;x<count;x++) {
-                        if(x < data.length && checkValidFloat(data[x]))
-                            values[x] = Float.valueOf(data[x]);
-                        else
-                            values[x] = 0f;
-                    }
                     prop = new DBPFFloatProperty(values);
                 }
                 break;
-            default:
+            }
+            default: {
+                boolean signed = (type == DBPFPropertyType.SINT32 || type == DBPFPropertyType.SINT64);
                 Long[] values = new Long[Math.abs(count)];
-                for(int x=0;x<Math.abs(count);x++) {
+                for(int x=0;x<values.length;x++) {
+                    int next = nextValueEnd(data, pos, valuesEnd);
                     long value = 0;
-                    String val = data[x].trim();
-                    if(val.length() > 0) {
+                    int valStart = TextScanner.trimStart(data, pos, next);
+                    int valEnd = TextScanner.trimEnd(data, valStart, next);
+                    if(valStart < valEnd) {
                         if(type == DBPFPropertyType.BOOL) {
-                            if(val.toLowerCase().equals("true") ||
+                            if(TextScanner.equalsIgnoreCase(data, valStart, valEnd, "true") ||
                                 // wrong implemented in older DBPF4J versions:
-                                            val.equals("0x01")) {
+                                            TextScanner.equalsIgnoreCase(data, valStart, valEnd, "0x01")) {
                                 value = 0x01;
                             }
                         } else {
-                            if(!val.contains("0x")) {
-                                    val = "0x" + val;
+                            value = TextScanner.parseHex(data, valStart, valEnd);
+                            if(signed) {
+                                int digits = TextScanner.hexDigitCount(data, valStart, valEnd);
+                                if (digits < 16) {
+                                    long signBit = 1L << ((digits * 4) - 1);
+                                    if((value & signBit) == signBit) {
+                                        value |= ~(signBit * 2 - 1);
+                                    }
+                                }
                             }
-                            boolean signed = (type == DBPFPropertyType.SINT32 || type == DBPFPropertyType.SINT64);
-                            value = DBPFUtil.toValue(val, signed);
                         }
                     }
                     values[x] = value;
+                    pos = next + 1;
                 }
                 if(count == -1) {
                     prop = new DBPFLongProperty(type, values[0]);
@@ -272,11 +345,24 @@ public abstract class DBPFProperty {
                     prop = new DBPFLongProperty(type, values);
                 }
                 break;
+            }
         }
         prop.setID(id);
         return prop;
     }
 
+    /**
+     * @return the index of the comma terminating the value starting at pos,
+     *         or end, if there is none
+     */
+    private static int nextValueEnd(byte[] data, int pos, int end) {
+        if (pos >= end) {
+            return end;
+        }
+        int comma = TextScanner.indexOf(data, ',', pos, end);
+        return comma == -1 ? end : comma;
+    }
+
     /**
      * Returns a short array for this property.<br>
      *
@@ -293,26 +379,70 @@ public abstract class DBPFProperty {
      * @return An array
      */
     public byte[] toRaw() {
-        // writes the basic property information
         byte[] data = new byte[getBinaryLength()];
-        DBPFUtil.setUint(getID(), data, 0, 4);
-        DBPFUtil.setUint(dataType.id, data, 4, 2);
+        toRaw(data, 0);
+        return data;
+    }
+
+    /**
+     * Writes this property to the array at the given offset.<br>
+     *
+     * The data is in the Binary-Format (0x42), exactly as returned by
+     * {@link #toRaw()}, but is written directly into the destination array
+     * instead of a newly created one.
+     *
+     * @param data
+     *            The destination array
+     * @param offset
+     *            The offset inside the array
+     * @return The number of bytes written, that is the
+     *            {@link #getBinaryLength() binary length}
+     */
+    public int toRaw(byte[] data, int offset) {
+        // writes the basic property information
+        DBPFUtil.setUint(getID(), data, offset, 4);
+        DBPFUtil.setUint(dataType.id, data, offset + 4, 2);
         if (count != -1) {
-            DBPFUtil.setUint(0x80, data, 6, 1);
-            DBPFUtil.setUint(count, data, 9, 4);
+            DBPFUtil.setUint(0x80, data, offset + 6, 1);
+            DBPFUtil.setUint(count, data, offset + 9, 4);
         } else {
-            DBPFUtil.setUint(0x00, data, 6, 1);
+            DBPFUtil.setUint(0x00, data, offset + 6, 1);
         }
-        DBPFUtil.setUint(0x00, data, 7, 2);
+        DBPFUtil.setUint(0x00, data, offset + 7, 2);
 
         // gets the offset and sets the property values
-        int offset = 9;
+        int valueOffset = offset + 9;
         if (count != -1) {
-            offset += 4;
+            valueOffset += 4;
         }
-        valueToRaw(data, offset);
+        valueToRaw(data, valueOffset);
 
-        return data;
+        return getBinaryLength();
+    }
+
+    /**
+     * Writes this property to the buffer at its current position and
+     * advances the position by the {@link #getBinaryLength() binary length}.<br>
+     *
+     * The data is in the Binary-Format (0x42). If the buffer is backed by an
+     * accessible array, the property is encoded directly into that array.
+     *
+     * @param dst
+     *            The destination buffer
+     * @throws BufferOverflowException
+     *            if the buffer has not enough remaining space
+     */
+    public void toRaw(ByteBuffer dst) {
+        int length = getBinaryLength();
+        if (dst.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        if (dst.hasArray()) {
+            toRaw(dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + length);
+        } else {
+            dst.put(toRaw());
+        }
     }
 
     /**
@@ -1,7 +1,10 @@
 package jdbpfx.types;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.TreeMap;
 import java.util.logging.Level;
 
@@ -9,6 +12,7 @@ import jdbpfx.DBPFTGI;
 import jdbpfx.DBPFType;
 import jdbpfx.properties.DBPFProperty;
 import jdbpfx.util.DBPFUtil;
+import jdbpfx.util.TextScanner;
 
 /**
  * @author memo
@@ -17,6 +21,15 @@ abstract class AbstractCohortType extends DBPFType {
 
     private final String magicNumber;
 
+    // the binary data is written into this once, and then copied at its actual length
+    private static final int MAX_SCRATCH_SIZE = 1 << 20;
+    private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(1 << 12);
+        }
+    };
+
     DBPFTGI parentCohortTGI;
     short format;
     boolean modified;
@@ -319,33 +332,82 @@ abstract class AbstractCohortType extends DBPFType {
      *            The decompressed data
      */
     private void createCohortT(byte[] dData) {
-        // Read all lines
-        ArrayList<String> lines = DBPFUtil.getLines(dData, 0x08);
-        // for (String string : lines) {
-        // System.out.println(string);
-        // }
-        int start = 0;
-        while (!lines.get(start).contains("=")) {
-            start++;
+        // Iterate the lines directly on the data
+        TextScanner lines = new TextScanner(dData, 0x08);
+        do {
+            if (!lines.nextLine()) {
+                throw new RuntimeException("Bad Text Data");
+            }
+        } while (TextScanner.indexOf(dData, '=', lines.getLineStart(), lines.getLineEnd()) == -1);
+
+        // Get cohort from first line, e.g. ParentCohort=Key:{0x00000000,0x00000000,0x00000000}
+        int end = lines.getLineEnd();
+        int pos = TextScanner.indexOf(dData, '{', lines.getLineStart(), end) + 1;
+        int braceEnd = TextScanner.indexOf(dData, '}', pos, end);
+        if (braceEnd != -1) {
+            end = braceEnd;
         }
-        // Get cohort from first line
-        String[] nameValue = lines.get(start).split("=");
-        String[] value = nameValue[1].split(":");
-        String[] coTGI = value[1].split(",");
-        parentCohortTGI = DBPFTGI.valueOf(Long.decode(coTGI[0].substring(1)),
-                                          Long.decode(coTGI[1]),
-                                          Long.decode(coTGI[2].substring(0, 10)));
+        long[] coTGI = new long[3];
+        for (int i = 0; i < coTGI.length; i++) {
+            int comma = TextScanner.indexOf(dData, ',', pos, end);
+            int valueEnd = comma == -1 ? end : comma;
+            coTGI[i] = TextScanner.parseLong(dData, pos, valueEnd);
+            pos = valueEnd + 1;
+        }
+        parentCohortTGI = DBPFTGI.valueOf(coTGI[0], coTGI[1], coTGI[2]);
 
         // Get propCount from second line
-        nameValue = lines.get(start + 1).split("=");
-        int propCount = Integer.decode(nameValue[1]);
-        for (int i = 0; i < propCount; i++) {
-            DBPFProperty prop = DBPFProperty.decodeProperty(lines.get(start + 2 + i));
+        lines.nextLine();
+        int propCount = (int) TextScanner.parseLong(dData,
+                TextScanner.indexOf(dData, '=', lines.getLineStart(), lines.getLineEnd()) + 1,
+                lines.getLineEnd());
+        for (int i = 0; i < propCount && lines.nextLine(); i++) {
+            DBPFProperty prop = DBPFProperty.decodeTextProperty(dData, lines.getLineStart(), lines.getLineEnd());
             addProperty(prop);
         }
         format = DBPFUtil.FORMAT_TEXT;
     }
 
+    /**
+     * Writes this exemplar/cohort to the buffer at its current position and
+     * advances the position by the {@link #getBinaryLength() binary length}.
+     * <p>
+     * The data is in the Binary-format (0x42). Each property is encoded
+     * directly into the buffer in a single pass, without creating intermediate
+     * arrays, so a single buffer may be reused for serializing many
+     * exemplars/cohorts in a row.
+     *
+     * @param dst
+     *            The destination buffer
+     * @throws BufferOverflowException
+     *            if the buffer has less remaining space than
+     *            {@link #getBinaryLength()}. The position of the buffer is
+     *            left unchanged in that case, but the data up to the limit of
+     *            the buffer may have been partly overwritten.
+     */
+    public void writeBinary(ByteBuffer dst) {
+        ByteBuffer buf = dst.duplicate();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < this.magicNumber.length(); i++) {
+            buf.put((byte) this.magicNumber.charAt(i));
+        }
+        buf.put((byte) DBPFUtil.FORMAT_BINARY);
+        long unknown1 = 0x31;
+        buf.put((byte) unknown1);
+        long unknown2 = 0x232323;
+        buf.put((byte) unknown2);
+        buf.put((byte) (unknown2 >>> 8));
+        buf.put((byte) (unknown2 >>> 16));
+        buf.putInt((int) this.getParentCohortTGI().getType());
+        buf.putInt((int) this.getParentCohortTGI().getGroup());
+        buf.putInt((int) this.getParentCohortTGI().getInstance());
+        buf.putInt(this.propertyMap.size());
+        for (DBPFProperty prop : this.propertyMap.values()) {
+            prop.toRaw(buf);
+        }
+        dst.position(buf.position());
+    }
+
     /**
      * Create the data for the given exemplar/cohort.
      * <p>
@@ -354,29 +416,21 @@ abstract class AbstractCohortType extends DBPFType {
      * @return The data
      */
     private byte[] createCohortDataB() {
-        byte[] data = new byte[this.getBinaryLength()];
-        DBPFUtil.setChars(this.magicNumber, data, 0x00);
-        DBPFUtil.setUint(DBPFUtil.FORMAT_BINARY, data, 0x03, 1);
-        long unknown1 = 0x31;
-        DBPFUtil.setUint(unknown1, data, 0x04, 1);
-        long unknown2 = 0x232323;
-        DBPFUtil.setUint(unknown2, data, 0x05, 3);
-        DBPFUtil.setUint(this.getParentCohortTGI().getType(), data, 0x08, 4);
-        DBPFUtil.setUint(this.getParentCohortTGI().getGroup(), data, 0x0c, 4);
-        DBPFUtil.setUint(this.getParentCohortTGI().getInstance(), data, 0x10, 4);
-        DBPFUtil.setUint(this.propertyMap.size(), data, 0x14, 4);
-        int pos = 0x18;
-        try {
-            for (DBPFProperty prop : this.propertyMap.values()) {
-                byte[] pdata = prop.toRaw();
-                System.arraycopy(pdata, 0, data, pos, pdata.length);
-                pos += pdata.length;
+        ByteBuffer buf = SCRATCH.get();
+        while (true) {
+            buf.clear();
+            try {
+                writeBinary(buf);
+                break;
+            } catch (BufferOverflowException e) {
+                // grows rarely, as the buffer is kept for the next exemplars
+                buf = ByteBuffer.allocate(2 * buf.capacity());
+                if (buf.capacity() <= MAX_SCRATCH_SIZE) {
+                    SCRATCH.set(buf);
+                }
             }
-        } catch (Exception e) {
-            // TODO what for?
-            System.out.println(this.toDetailString());
         }
-        return data;
+        return Arrays.copyOf(buf.array(), buf.position());
     }
 
     /**
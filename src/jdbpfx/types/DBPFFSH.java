@@ -1,12 +1,27 @@
 package jdbpfx.types;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import jdbpfx.DBPFTGI;
 import jdbpfx.DBPFType;
 import jdbpfx.util.DBPFUtil;
+import jdbpfx.util.DXTCompressor;
 
 //import gr.zdimensions.jsquish.Squish;
 
@@ -20,6 +35,31 @@ public class DBPFFSH extends DBPFType {
     private String id;
 
     private ArrayList<ImageIndex> imageIndex;
+    private volatile boolean memoizing = true;
+
+    /**
+     * The pool used for parallel decoding, if no executor is specified.
+     */
+    private static ExecutorService defaultExecutor;
+
+    private static final String FSH_DIRECTORY_ID = "G264";
+
+    private static final byte[] DDS_MAGIC = {'D', 'D', 'S', ' '};
+    private static final byte[] FOURCC_DXT1 = {'D', 'X', 'T', '1'};
+    private static final byte[] FOURCC_DXT3 = {'D', 'X', 'T', '3'};
+    private static final int DDSD_CAPS = 0x1;
+    private static final int DDSD_HEIGHT = 0x2;
+    private static final int DDSD_WIDTH = 0x4;
+    private static final int DDSD_PITCH = 0x8;
+    private static final int DDSD_PIXELFORMAT = 0x1000;
+    private static final int DDSD_MIPMAPCOUNT = 0x20000;
+    private static final int DDSD_LINEARSIZE = 0x80000;
+    private static final int DDPF_ALPHAPIXELS = 0x1;
+    private static final int DDPF_FOURCC = 0x4;
+    private static final int DDPF_RGB = 0x40;
+    private static final int DDSCAPS_COMPLEX = 0x8;
+    private static final int DDSCAPS_TEXTURE = 0x1000;
+    private static final int DDSCAPS_MIPMAP = 0x400000;
 
     /**
      * Constructor.<br>
@@ -46,21 +86,124 @@ public class DBPFFSH extends DBPFType {
                 imageIndex.add(entry);
                 pos += 8;
             }
+        }
+    }
 
-            for(ImageIndex entry : imageIndex) {
-                int offset = (int)entry.offset;
-                entry.type = (short)DBPFUtil.getUint(data, offset, 1);
-                entry.size = DBPFUtil.getUint(data, offset + 1, 3);
-                entry.width = (int)DBPFUtil.getUint(data, offset + 4, 2);
-                entry.height = (int)DBPFUtil.getUint(data, offset + 6, 2);
-                entry.xCenter = (int)DBPFUtil.getUint(data, offset + 8, 2);
-                entry.yCenter = (int)DBPFUtil.getUint(data, offset + 10, 2);
-                entry.xOffset = (int)DBPFUtil.getUint(data, offset + 12, 2) & 0xFFF;
-                entry.yOffset = (int)DBPFUtil.getUint(data, offset + 14, 2) & 0xFFF;
-                entry.mipCount = ((int)DBPFUtil.getUint(data, offset + 14, 2) & 0xF000) >>> 12;
-                //readImageData(entry, data);
+    /**
+     * Creates a FSH from a single image, compressing the image and its mip
+     * levels with the given DXT format.
+     *
+     * @param tgi
+     *            The TGI of the new type
+     * @param argb
+     *            The pixels in the layout of {@link BufferedImage#TYPE_INT_ARGB},
+     *            row by row
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param format
+     *            The compression format
+     * @param quality
+     *            The compression quality
+     * @param mipCount
+     *            The number of additional mip levels, each half the size of
+     *            the previous one
+     * @param executor
+     *            The executor to compress the blocks with, or {@code null} to
+     *            compress in the current thread
+     * @return The FSH
+     * @throws IllegalArgumentException
+     *            if the number of mip levels is not supported by the size of
+     *            the image
+     */
+    public static DBPFFSH createFSH(DBPFTGI tgi, int[] argb, int width, int height,
+            DXTCompressor.Format format, DXTCompressor.Quality quality, int mipCount, ExecutorService executor) {
+        List<int[]> rasters = new ArrayList<int[]>(1);
+        rasters.add(argb);
+        return createFSH(tgi, rasters, new int[] {width}, new int[] {height}, format, quality, mipCount, executor);
+    }
+
+    /**
+     * Creates a FSH containing the given images, compressing each image and
+     * its mip levels with the given DXT format.
+     *
+     * @param tgi
+     *            The TGI of the new type
+     * @param images
+     *            The images
+     * @param format
+     *            The compression format
+     * @param quality
+     *            The compression quality
+     * @param mipCount
+     *            The number of additional mip levels, each half the size of
+     *            the previous one
+     * @param executor
+     *            The executor to compress the blocks with, or {@code null} to
+     *            compress in the current thread
+     * @return The FSH
+     * @throws IllegalArgumentException
+     *            if the number of mip levels is not supported by the size of
+     *            an image
+     */
+    public static DBPFFSH createFSH(DBPFTGI tgi, List<BufferedImage> images,
+            DXTCompressor.Format format, DXTCompressor.Quality quality, int mipCount, ExecutorService executor) {
+        List<int[]> rasters = new ArrayList<int[]>(images.size());
+        int[] widths = new int[images.size()], heights = new int[images.size()];
+        for(int i=0;i<images.size();i++) {
+            BufferedImage image = images.get(i);
+            widths[i] = image.getWidth();
+            heights[i] = image.getHeight();
+            rasters.add(image.getRGB(0, 0, widths[i], heights[i], null, 0, widths[i]));
+        }
+        return createFSH(tgi, rasters, widths, heights, format, quality, mipCount, executor);
+    }
+
+    private static DBPFFSH createFSH(DBPFTGI tgi, List<int[]> rasters, int[] widths, int[] heights,
+            DXTCompressor.Format format, DXTCompressor.Quality quality, int mipCount, ExecutorService executor) {
+        int numImages = rasters.size();
+        int[] offsets = new int[numImages + 1];
+        offsets[0] = 0x10 + 8 * numImages;
+        for(int i=0;i<numImages;i++) {
+            if(mipCount < 0 || mipCount > 15 || (widths[i] >> mipCount) == 0 || (heights[i] >> mipCount) == 0)
+                throw new IllegalArgumentException("Unsupported number of mip levels " + mipCount +
+                        " for image of size " + widths[i] + "x" + heights[i]);
+            int length = 0x10;
+            for(int m=0;m<=mipCount;m++)
+                length += DXTCompressor.getCompressedSize(widths[i] >> m, heights[i] >> m, format);
+            offsets[i + 1] = offsets[i] + length;
+        }
+
+        byte[] data = new byte[offsets[numImages]];
+        DBPFUtil.setChars(DBPFUtil.MAGICNUMBER_SHPI, data, 0x00);
+        DBPFUtil.setUint(data.length, data, 0x04, 4);
+        DBPFUtil.setUint(numImages, data, 0x08, 4);
+        DBPFUtil.setChars(FSH_DIRECTORY_ID, data, 0x0C);
+        for(int i=0;i<numImages;i++) {
+            DBPFUtil.setChars(DBPFUtil.toHex(i, 4), data, 0x10 + 8 * i);
+            DBPFUtil.setUint(offsets[i], data, 0x10 + 8 * i + 4, 4);
+
+            int offset = offsets[i];
+            data[offset] = (byte)format.getCode();
+            DBPFUtil.setUint(widths[i], data, offset + 4, 2);
+            DBPFUtil.setUint(heights[i], data, offset + 6, 2);
+            DBPFUtil.setUint(mipCount << 12, data, offset + 14, 2);
+            offset += 0x10;
+
+            int[] pixels = rasters.get(i);
+            int width = widths[i], height = heights[i];
+            for(int m=0;m<=mipCount;m++) {
+                if(m > 0) {
+                    pixels = DXTCompressor.downsample(pixels, width, height);
+                    width >>= 1;
+                    height >>= 1;
+                }
+                DXTCompressor.compress(pixels, width, height, format, quality, data, offset, executor);
+                offset += DXTCompressor.getCompressedSize(width, height, format);
             }
         }
+        return new DBPFFSH(data, tgi, false);
     }
 
     @Override
@@ -82,11 +225,38 @@ public class DBPFFSH extends DBPFType {
 
     public int getNumMips(int index) {
         if(index < numEntries)
-            return imageIndex.get(index).mipCount;
+            return getEntry(index).mipCount;
 
         return -1;
     }
 
+    /**
+     * Sets whether decoded images are kept in memory, so that subsequent
+     * requests for the same image and mip level return the same instance.
+     * This is enabled by default. If disabled, every request decodes the
+     * image anew, which saves memory if each image is only needed once.
+     *
+     * @param memoizing
+     *            TRUE, if decoded images are to be kept
+     */
+    public void setMemoizing(boolean memoizing) {
+        this.memoizing = memoizing;
+        if(!memoizing && imageIndex != null) {
+            for(ImageIndex entry : imageIndex) {
+                synchronized(entry) {
+                    entry.images = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return TRUE, if decoded images are kept in memory
+     */
+    public boolean isMemoizing() {
+        return memoizing;
+    }
+
     public BufferedImage getImage() {
         return getImage(0, 0);
     }
@@ -95,29 +265,164 @@ public class DBPFFSH extends DBPFType {
         return getImage(index, 0);
     }
 
+    /**
+     * Returns the image of the given mip level. Only this mip level is
+     * decoded, the others remain untouched.
+     *
+     * @param index
+     *            The index of the image
+     * @param mip
+     *            The mip level, 0 being the full size image
+     * @return The image, or {@code null} if there is no such image or mip level
+     */
     public BufferedImage getImage(int index, int mip) {
-        if(index < numEntries) {
-            if(imageIndex.get(index).images.isEmpty())
-                readImageData(imageIndex.get(index), rawData);
+        if(index < 0 || index >= numEntries)
+            return null;
 
-            if(mip < imageIndex.get(index).images.size())
-                return imageIndex.get(index).images.get(mip);
+        ImageIndex entry = getEntry(index);
+        if(mip < 0 || mip > entry.mipCount)
+            return null;
 
+        BufferedImage image = null;
+        synchronized(entry) {
+            if(entry.images != null)
+                image = entry.images[mip];
         }
-        return null;
+        if(image == null) {
+            int width = getWidth(entry, mip), height = getHeight(entry, mip);
+            int[] pixels = new int[width * height];
+            decodePixels(entry.type & 0x7F, rawData, getMipOffset(entry, mip), width, height, pixels);
+            image = createImage(pixels, width, height);
+            if(memoizing) {
+                synchronized(entry) {
+                    if(entry.images == null)
+                        entry.images = new BufferedImage[entry.mipCount + 1];
+                    if(entry.images[mip] == null)
+                        entry.images[mip] = image;
+                    else
+                        image = entry.images[mip];
+                }
+            }
+        }
+        return image;
     }
 
     public List<BufferedImage> getImages(int index) {
         if(index < numEntries) {
-            if(imageIndex.get(index).images.isEmpty())
-                readImageData(imageIndex.get(index), rawData);
+            ImageIndex entry = getEntry(index);
+            List<BufferedImage> images = new ArrayList<BufferedImage>(entry.mipCount + 1);
+            for(int mip=0;mip<=entry.mipCount;mip++)
+                images.add(getImage(index, mip));
 
-            return new ArrayList<BufferedImage>(imageIndex.get(index).images);
+            return images;
         }
 
         return null;
     }
 
+    /**
+     * Decodes all the mip levels of an image in parallel.
+     *
+     * @param index
+     *            The index of the image
+     * @param executor
+     *            The executor to decode the mip levels with, or {@code null}
+     *            to use a shared {@link ForkJoinPool}
+     * @return The images of all the mip levels, or {@code null} if there is no
+     *            such image or the current thread was interrupted
+     */
+    public List<BufferedImage> getImages(int index, ExecutorService executor) {
+        if(index < 0 || index >= numEntries)
+            return null;
+
+        List<List<BufferedImage>> result = decodeAll(index, index + 1, executor);
+        return result == null ? null : result.get(0);
+    }
+
+    /**
+     * Decodes all the images of this FSH, including all their mip levels,
+     * in parallel.
+     *
+     * @param executor
+     *            The executor to decode the images with, or {@code null}
+     *            to use a shared {@link ForkJoinPool}
+     * @return A list containing the images of all the mip levels for each
+     *            image, or {@code null} if the current thread was interrupted
+     */
+    public List<List<BufferedImage>> getAllImages(ExecutorService executor) {
+        return decodeAll(0, (int)numEntries, executor);
+    }
+
+    private List<List<BufferedImage>> decodeAll(int fromIndex, int toIndex, ExecutorService executor) {
+        if(executor == null)
+            executor = getDefaultExecutor();
+
+        List<Callable<BufferedImage>> tasks = new ArrayList<Callable<BufferedImage>>();
+        for(int i=fromIndex;i<toIndex;i++) {
+            final int index = i;
+            int mipCount = getEntry(index).mipCount;
+            for(int m=0;m<=mipCount;m++) {
+                final int mip = m;
+                tasks.add(new Callable<BufferedImage>() {
+                    @Override
+                    public BufferedImage call() {
+                        return getImage(index, mip);
+                    }
+                });
+            }
+        }
+
+        try {
+            List<Future<BufferedImage>> futures = executor.invokeAll(tasks);
+            List<List<BufferedImage>> result = new ArrayList<List<BufferedImage>>(toIndex - fromIndex);
+            int pos = 0;
+            for(int i=fromIndex;i<toIndex;i++) {
+                int mipCount = getEntry(i).mipCount;
+                List<BufferedImage> images = new ArrayList<BufferedImage>(mipCount + 1);
+                for(int m=0;m<=mipCount;m++)
+                    images.add(futures.get(pos++).get());
+                result.add(images);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static synchronized ExecutorService getDefaultExecutor() {
+        if(defaultExecutor == null)
+            defaultExecutor = new ForkJoinPool();
+        return defaultExecutor;
+    }
+
+    /**
+     * Returns the index entry of an image, parsing its header on first access.
+     */
+    private ImageIndex getEntry(int index) {
+        ImageIndex entry = imageIndex.get(index);
+        synchronized(entry) {
+            if(!entry.parsed) {
+                int offset = (int)entry.offset;
+                entry.type = (short)DBPFUtil.getUint(rawData, offset, 1);
+                entry.size = DBPFUtil.getUint(rawData, offset + 1, 3);
+                entry.width = (int)DBPFUtil.getUint(rawData, offset + 4, 2);
+                entry.height = (int)DBPFUtil.getUint(rawData, offset + 6, 2);
+                entry.xCenter = (int)DBPFUtil.getUint(rawData, offset + 8, 2);
+                entry.yCenter = (int)DBPFUtil.getUint(rawData, offset + 10, 2);
+                entry.xOffset = (int)DBPFUtil.getUint(rawData, offset + 12, 2) & 0xFFF;
+                entry.yOffset = (int)DBPFUtil.getUint(rawData, offset + 14, 2) & 0xFFF;
+                entry.mipCount = ((int)DBPFUtil.getUint(rawData, offset + 14, 2) & 0xF000) >>> 12;
+                entry.parsed = true;
+            }
+        }
+        return entry;
+    }
+
     /**
      * Returns the data of the raw type.<br>
      * This data is equivalent to the rawData.
@@ -134,218 +439,315 @@ public class DBPFFSH extends DBPFType {
         return DBPFType.Type.FSH;
     }
 
-    private void readImageData(ImageIndex entry, byte[] data) {
-        int dataEnd = 0;
+    /**
+     * Decodes the pixels of an image at the given mip level into a raster of
+     * ARGB values, as used by {@link BufferedImage#TYPE_INT_ARGB}. The pixels
+     * are stored row by row, so the pixel {@code (x, y)} is located at index
+     * {@code y * width + x}.
+     * <p>
+     * The raster may be supplied by the caller, so that it can be reused for
+     * decoding many images of the same size without allocating new memory.
+     *
+     * @param index
+     *            The index of the image
+     * @param mip
+     *            The mip level, 0 being the full size image
+     * @param argb
+     *            The destination raster, or {@code null}. If it is too small
+     *            to hold all the pixels of the image, a new array is created.
+     * @return The raster containing the pixels, or {@code null} if there is no
+     *            such image or mip level
+     */
+    public int[] getPixels(int index, int mip, int[] argb) {
+        if(index < 0 || index >= numEntries || mip < 0 || mip > getEntry(index).mipCount)
+            return null;
+
+        ImageIndex entry = getEntry(index);
+        int width = getWidth(entry, mip), height = getHeight(entry, mip);
+        if(argb == null || argb.length < width * height)
+            argb = new int[width * height];
+        decodePixels(entry.type & 0x7F, rawData, getMipOffset(entry, mip), width, height, argb);
+        return argb;
+    }
+
+    /**
+     * Returns the format code of an image, such as 0x60 for DXT1, 0x61 for
+     * DXT3 or 0x7D for 32-bit ARGB.
+     *
+     * @param index
+     *            The index of the image
+     * @return The format, or -1 if there is no such image
+     */
+    public int getFormat(int index) {
+        if(index < 0 || index >= numEntries)
+            return -1;
+
+        return getEntry(index).type & 0x7F;
+    }
+
+    /**
+     * Returns the raw pixel data of an image at the given mip level, as it
+     * is stored in the FSH, that is, DXT blocks for compressed formats or
+     * uncompressed pixels in little-endian order otherwise. No decoding takes
+     * place; the buffer is a read-only view of the raw data of this type.
+     *
+     * @param index
+     *            The index of the image
+     * @param mip
+     *            The mip level, 0 being the full size image
+     * @return The read-only data, or {@code null} if there is no such image
+     *            or mip level
+     */
+    public ByteBuffer getRawImageData(int index, int mip) {
+        if(index < 0 || index >= numEntries || mip < 0 || mip > getEntry(index).mipCount)
+            return null;
+
+        ImageIndex entry = getEntry(index);
+        int length = getDataLength(entry.type & 0x7F, getWidth(entry, mip), getHeight(entry, mip));
+        return ByteBuffer.wrap(rawData, getMipOffset(entry, mip), length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the raw pixel data of all the mip levels of an image. The mip
+     * levels are stored contiguously, starting with the full size image.
+     *
+     * @param index
+     *            The index of the image
+     * @return The read-only data, or {@code null} if there is no such image
+     * @see #getRawImageData(int, int)
+     */
+    public ByteBuffer getRawImageData(int index) {
+        if(index < 0 || index >= numEntries)
+            return null;
+
+        ImageIndex entry = getEntry(index);
+        int offset = getMipOffset(entry, 0);
+        int length = getMipOffset(entry, entry.mipCount + 1) - offset;
+        return ByteBuffer.wrap(rawData, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes an image including all its mip levels to a DDS file. The raw
+     * pixel data is copied as is, so DXT compressed images are neither
+     * decoded nor re-encoded.
+     *
+     * @param index
+     *            The index of the image
+     * @param out
+     *            The stream to write to, which is not closed
+     * @throws IOException
+     *            if an I/O error occurs
+     * @throws IllegalArgumentException
+     *            if there is no such image or its format is unknown
+     */
+    public void writeDDS(int index, OutputStream out) throws IOException {
+        int format = getFormat(index);
+        if(format < 0 || getDataLength(format, 1, 1) == 0)
+            throw new IllegalArgumentException("Unsupported image " + index + " with format " + format);
+
+        ImageIndex entry = getEntry(index);
+        boolean compressed = format == 0x60 || format == 0x61;
+        boolean hasMips = entry.mipCount > 0;
+
+        ByteBuffer header = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(DDS_MAGIC);
+        header.putInt(124);
+        header.putInt(DDSD_CAPS | DDSD_HEIGHT | DDSD_WIDTH | DDSD_PIXELFORMAT |
+                (compressed ? DDSD_LINEARSIZE : DDSD_PITCH) | (hasMips ? DDSD_MIPMAPCOUNT : 0));
+        header.putInt(entry.height);
+        header.putInt(entry.width);
+        header.putInt(compressed ? getDataLength(format, entry.width, entry.height)
+                : getDataLength(format, entry.width, 1));
+        header.putInt(0); // depth
+        header.putInt(entry.mipCount + 1);
+        header.position(header.position() + 11 * 4); // reserved
+
+        // pixel format
+        header.putInt(32);
+        switch(format) {
+            case 0x60: //DXT1
+            case 0x61: //DXT3
+                header.putInt(DDPF_FOURCC);
+                header.put(format == 0x60 ? FOURCC_DXT1 : FOURCC_DXT3);
+                header.putInt(0).putInt(0).putInt(0).putInt(0).putInt(0);
+                break;
+            case 0x7D: //ARGB 32bit 8x8x8x8
+                putPixelFormat(header, true, 32, 0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000);
+                break;
+            case 0x7F: //RGB 24bit 8x8x8
+                putPixelFormat(header, false, 24, 0x00FF0000, 0x0000FF00, 0x000000FF, 0);
+                break;
+            case 0x7E: //ARGB 16bit 1x5x5x5
+                putPixelFormat(header, true, 16, 0x7C00, 0x03E0, 0x001F, 0x8000);
+                break;
+            case 0x78: //RGB 16bit 5x6x5
+                putPixelFormat(header, false, 16, 0xF800, 0x07E0, 0x001F, 0);
+                break;
+            case 0x6D: //ARGB 16bit 4x4x4x4
+                putPixelFormat(header, true, 16, 0x0F00, 0x00F0, 0x000F, 0xF000);
+                break;
+        }
+
+        header.putInt(DDSCAPS_TEXTURE | (hasMips ? DDSCAPS_COMPLEX | DDSCAPS_MIPMAP : 0));
+        out.write(header.array());
+
+        int offset = getMipOffset(entry, 0);
+        out.write(rawData, offset, getMipOffset(entry, entry.mipCount + 1) - offset);
+    }
+
+    private static void putPixelFormat(ByteBuffer header, boolean alpha, int bitCount,
+            int redMask, int greenMask, int blueMask, int alphaMask) {
+        header.putInt(DDPF_RGB | (alpha ? DDPF_ALPHAPIXELS : 0));
+        header.putInt(0); // FourCC
+        header.putInt(bitCount);
+        header.putInt(redMask);
+        header.putInt(greenMask);
+        header.putInt(blueMask);
+        header.putInt(alphaMask);
+    }
+
+    private static int getWidth(ImageIndex entry, int mip) {
+        return entry.width / (1 << mip);
+    }
+
+    private static int getHeight(ImageIndex entry, int mip) {
+        return entry.height / (1 << mip);
+    }
+
+    /**
+     * @return the offset of the pixel data of the mip level within the raw data
+     */
+    private static int getMipOffset(ImageIndex entry, int mip) {
         int offset = (int)entry.offset + 0x10;
+        for(int i=0;i<mip;i++) {
+            offset += getDataLength(entry.type & 0x7F, getWidth(entry, i), getHeight(entry, i));
+        }
+        return offset;
+    }
 
-        for(int i=0;i<=entry.mipCount;i++) {
-            int width = (entry.width / (1 << i)), height = (entry.height / (1 << i));
-            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-
-            if((entry.type & 0x7F) == 0x60) { //DXT1
-                int left = 0, top = 0;
-                for(;; offset += 8) {
-                    int color0 = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8),
-                        color1 = (data[offset + 2] & 0xFF) | ((data[offset + 3] & 0xFF) << 8),
-                        red0 = (int)((color0 & 0x1F) * 33.0 / 4), red1 = (int)((color1 & 0x1F) * 33.0 / 4),
-                        green0 = (int)(((color0 >> 5) & 0x3F) * 65.0 / 16), green1 = (int)(((color1 >> 5) & 0x3F) * 65.0 / 16),
-                        blue0 = (int)(((color0 >> 11) & 0x1F) * 33.0 / 4), blue1 = (int)(((color1 >> 11) & 0x1F) * 33.0 / 4);
-
-                    if(color0 > color1) {
-                        int yStop = (height - top > 4) ? 4 : height - top;
-                        for(int y=0;y<yStop;y++) {
-                            int bits = (data[offset + 4 + y] & 0xFF);
-                            int xStop = (width - left > 4) ? 4 : width - left;
-                            for(int x=0;x<xStop;x++) {
-                                int code = (bits >> (x*2)) & 0x0003;
-                                int pixel = 0;
-                                switch (code) {
-                                    case 0:
-                                        pixel = red0 |
-                                                        (green0 << 8) |
-                                                        (blue0 << 16) |
-                                                        0xFF000000;
-                                        break;
-                                    case 1:
-                                        pixel = red1 |
-                                                        (green1 << 8) |
-                                                        (blue1 << 16) |
-                                                        0xFF000000;
-                                        break;
-                                    case 2:
-                                        pixel = ((2 * red0 + red1) / 3) |
-                                                        (((2 * green0 + green1) / 3) << 8) |
-                                                        (((2 * blue0 + blue1) / 3) << 16) |
-                                                        0xFF000000;
-                                        break;
-                                    case 3:
-                                        pixel = ((red0 + 2 * red1) / 3) |
-                                                        (((green0 + 2 * green1) / 3) << 8) |
-                                                        (((blue0 + 2 * blue1) / 3) << 16) |
-                                                        0xFF000000;
-                                        break;
-                                }
-                                image.setRGB(left + x, top + y, pixel);
-                            }
-                        }
-                    } else {
-                        int yStop = (height - top > 4) ? 4 : height - top;
-                        for(int y=0;y<yStop;y++) {
-                            int bits = (data[offset + 4 + y] & 0xFF);
-                            int xStop = (width - left > 4) ? 4 : width - left;
-                            for(int x=0;x<xStop;x++) {
-                                int code = (bits >> (x*2)) & 0x0003;
-                                int pixel = 0;
-                                switch (code) {
-                                    case 0:
-                                        pixel = red0 |
-                                                (green0 << 8) |
-                                                (blue0 << 16) |
-                                                0xFF000000;
-                                        break;
-                                    case 1:
-                                        pixel = red1 |
-                                                (green1 << 8) |
-                                                (blue1 << 16) |
-                                                0xFF000000;
-                                        break;
-                                    case 2:
-                                        pixel = ((red0 + red1) / 2) |
-                                                (((green0 + green1) / 2) << 8) |
-                                                (((blue0 + blue1) / 2) << 16) |
-                                                0xFF000000;
-                                        break;
-                                    case 3:
-                                        pixel = 0;
-                                        break;
-                                }
-                                image.setRGB(left + x, top + y, pixel);
-                            }
-                        }
-                    }
-                    left += 4;
-                    if(left >= width) {
-                        left = 0;
-                        top += 4;
-                        if(top >= height) {
-                            break;
-                        }
-                    }
+    /**
+     * @return the length of the pixel data of an image in the given format
+     */
+    private static int getDataLength(int format, int width, int height) {
+        switch(format) {
+            case 0x60: //DXT1
+                return ((width + 3) / 4) * ((height + 3) / 4) * 8;
+            case 0x61: //DXT3
+                return ((width + 3) / 4) * ((height + 3) / 4) * 16;
+            case 0x7D: //ARGB 32bit 8x8x8x8
+                return width * height * 4;
+            case 0x7F: //RGB 24bit 8x8x8
+                return width * height * 3;
+            case 0x7E: //ARGB 16bit 1x5x5x5
+            case 0x78: //RGB 16bit 5x6x5
+            case 0x6D: //ARGB 16bit 4x4x4x4
+                return width * height * 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Creates an image of type {@link BufferedImage#TYPE_INT_ARGB} that is
+     * backed by the given raster, without copying the pixels.
+     */
+    private static BufferedImage createImage(int[] argb, int width, int height) {
+        DataBufferInt buffer = new DataBufferInt(argb, width * height);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width,
+                new int[] {0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000}, null);
+        return new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+    }
+
+    private static void decodePixels(int format, byte[] data, int offset, int width, int height, int[] argb) {
+        int dataEnd = offset + getDataLength(format, width, height);
+        int pos = 0;
+        if(format == 0x60) { //DXT1
+            decodeDXT(data, offset, width, height, argb, false);
+        } else if(format == 0x61) { //DXT3
+            decodeDXT(data, offset, width, height, argb, true);
+        } else if(format == 0x7D) { //ARGB 32bit 8x8x8x8
+            for(;offset < dataEnd; offset += 4) {
+                argb[pos++] = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) |
+                              ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+            }
+        } else if(format == 0x7F) { //RGB 24bit 8x8x8
+            for(;offset < dataEnd; offset += 3) {
+                argb[pos++] = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) |
+                              ((data[offset + 2] & 0xFF) << 16) | 0xFF000000;
+            }
+        } else if(format == 0x7E) { //ARGB 16bit 1x5x5x5
+            for(;offset < dataEnd; offset += 2) {
+                argb[pos++] = ((data[offset] & 0x1F) << 3) | ((data[offset] & 0xE0) << 6) |
+                              ((data[offset + 1] & 0x03) << 14) | ((data[offset + 1] & 0x7C) << 17) |
+                              ((((data[offset + 1] & 0x80) >> 7) * 255) << 24);
+            }
+        } else if(format == 0x78) { //RGB 16bit 5x6x5
+            for(;offset < dataEnd; offset += 2) {
+                argb[pos++] = ((data[offset] & 0x1F) << 3) | ((data[offset] & 0xE0) << 5) |
+                              ((data[offset + 1] & 0x07) << 13) | ((data[offset + 1] & 0xF8) << 16) |
+                              0xFF000000;
+            }
+        } else if(format == 0x6D) { //ARGB 16bit 4x4x4x4
+            for(;offset < dataEnd; offset += 2) {
+                argb[pos++] = ((data[offset] & 0x0F) * 17) | ((((data[offset] & 0xF0) >>> 4) * 17) << 8) |
+                              (((data[offset + 1] & 0x0F) * 17) << 16) |
+                              ((((data[offset + 1] & 0xF0) >>> 4) * 17) << 24);
+            }
+        } else {
+            // unknown format results in a transparent image
+            Arrays.fill(argb, 0, width * height, 0);
+        }
+    }
+
+    /**
+     * Decodes DXT1 or DXT3 compressed blocks. The 5-bit and 6-bit color
+     * components are expanded to 8 bits by integer arithmetic.
+     */
+    private static void decodeDXT(byte[] data, int offset, int width, int height, int[] argb, boolean dxt3) {
+        final int blockSize = dxt3 ? 16 : 8;
+        final int[] palette = new int[4];
+        for(int top = 0; top < height; top += 4) {
+            int yStop = (height - top > 4) ? 4 : height - top;
+            for(int left = 0; left < width; left += 4, offset += blockSize) {
+                int xStop = (width - left > 4) ? 4 : width - left;
+                int colorOffset = dxt3 ? offset + 8 : offset;
+                int color0 = (data[colorOffset] & 0xFF) | ((data[colorOffset + 1] & 0xFF) << 8),
+                    color1 = (data[colorOffset + 2] & 0xFF) | ((data[colorOffset + 3] & 0xFF) << 8),
+                    red0 = ((color0 & 0x1F) * 33) >> 2, red1 = ((color1 & 0x1F) * 33) >> 2,
+                    green0 = (((color0 >> 5) & 0x3F) * 65) >> 4, green1 = (((color1 >> 5) & 0x3F) * 65) >> 4,
+                    blue0 = (((color0 >> 11) & 0x1F) * 33) >> 2, blue1 = (((color1 >> 11) & 0x1F) * 33) >> 2;
+
+                // DXT3 alpha is stored separately, DXT1 is opaque apart from code 3 in 3-color mode
+                int opaque = dxt3 ? 0 : 0xFF000000;
+                palette[0] = red0 | (green0 << 8) | (blue0 << 16) | opaque;
+                palette[1] = red1 | (green1 << 8) | (blue1 << 16) | opaque;
+                if(dxt3 || color0 > color1) {
+                    palette[2] = ((2 * red0 + red1) / 3) |
+                                 (((2 * green0 + green1) / 3) << 8) |
+                                 (((2 * blue0 + blue1) / 3) << 16) | opaque;
+                    palette[3] = ((red0 + 2 * red1) / 3) |
+                                 (((green0 + 2 * green1) / 3) << 8) |
+                                 (((blue0 + 2 * blue1) / 3) << 16) | opaque;
+                } else {
+                    palette[2] = ((red0 + red1) / 2) |
+                                 (((green0 + green1) / 2) << 8) |
+                                 (((blue0 + blue1) / 2) << 16) | opaque;
+                    palette[3] = 0;
                 }
-                // mipmap offset fix
-                offset += 8;
-            } else if((entry.type & 0x7F) == 0x61) { //DXT3
-                int left = 0, top = 0;
-                for(;; offset += 16) {
-                    int[] pixels = new int[16];
-
-                    for(int y=0;y<4;y++) {
-                        int bits = (data[offset + 2 * y] & 0xFF);
-                        pixels[4*y] = ((bits & 0x000F) * 17) << 24;
-                        pixels[4*y + 1] = (((bits & 0x00F0) >> 4) * 17) << 24;
-
-                        bits = (data[offset + 2 * y + 1] & 0xFF);
-                        pixels[4*y + 2] = ((bits & 0x000F) * 17) << 24;
-                        pixels[4*y + 3] = (((bits & 0x00F0) >> 4) * 17) << 24;
-                    }
-                    int color0 = (data[offset + 8] & 0xFF) | ((data[offset + 9] & 0xFF) << 8),
-                        color1 = (data[offset + 10] & 0xFF) | ((data[offset + 11] & 0xFF) << 8),
-                        red0 = (int)((color0 & 0x1F) * 33.0 / 4), red1 = (int)((color1 & 0x1F) * 33.0 / 4),
-                        green0 = (int)(((color0 >> 5) & 0x3F) * 65.0 / 16), green1 = (int)(((color1 >> 5) & 0x3F) * 65.0 / 16),
-                        blue0 = (int)(((color0 >> 11) & 0x1F) * 33.0 / 4), blue1 = (int)(((color1 >> 11) & 0x1F) * 33.0 / 4);
-
-                    int yStop = (height - top > 4) ? 4 : height - top;
-                    for(int y=0;y<yStop;y++) {
-                        int bits = (data[offset + 12 + y] & 0xFF);
-                        int xStop = (width - left > 4) ? 4 : width - left;
-                        for(int x=0;x<xStop;x++) {
-                            int code = (bits >> (x*2)) & 0x0003;
-                            switch (code) {
-                                    case 0:
-                                        pixels[4*y+x] |= red0 |
-                                                        (green0 << 8) |
-                                                        (blue0 << 16);
-                                        break;
-                                    case 1:
-                                        pixels[4*y+x] |= red1 |
-                                                        (green1 << 8) |
-                                                        (blue1 << 16);
-                                        break;
-                                    case 2:
-                                        pixels[4*y+x] |= ((2 * red0 + red1) / 3) |
-                                                        (((2 * green0 + green1) / 3) << 8) |
-                                                        (((2 * blue0 + blue1) / 3) << 16);
-                                        break;
-                                    case 3:
-                                        pixels[4*y+x] |= ((red0 + 2 * red1) / 3) |
-                                                        (((green0 + 2 * green1) / 3) << 8) |
-                                                        (((blue0 + 2 * blue1) / 3) << 16);
-                                        break;
-                            }
-                            image.setRGB(left + x, top + y, pixels[4*y+x]);
-                        }
-                    }
-                    left += 4;
-                    if(left >= width) {
-                        left = 0;
-                        top += 4;
-                        if(top >= height) {
-                            break;
+
+                for(int y=0;y<yStop;y++) {
+                    int bits = (data[colorOffset + 4 + y] & 0xFF);
+                    int alphaBits = dxt3 ? (data[offset + 2 * y] & 0xFF) | ((data[offset + 2 * y + 1] & 0xFF) << 8) : 0;
+                    int pos = (top + y) * width + left;
+                    for(int x=0;x<xStop;x++) {
+                        int pixel = palette[(bits >> (x*2)) & 0x0003];
+                        if(dxt3) {
+                            pixel |= (((alphaBits >> (x*4)) & 0x000F) * 17) << 24;
                         }
+                        argb[pos + x] = pixel;
                     }
                 }
-                // mipmap offset fix
-                offset += 16;
-            } else if((entry.type & 0x7F) == 0x7D) { //ARGB 32bit 8x8x8x8
-                dataEnd = offset + (width * height * 4);
-                int[] pixels = new int[(dataEnd-offset)/4];
-                int pos = 0;
-                for(;offset < dataEnd; offset += 4) {
-                    pixels[pos++] = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) |
-                                    ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
-                }
-                image.setRGB(0, 0, width, height, pixels, 0, width);
-            } else if((entry.type & 0x7F) == 0x7F) { //RGB 24bit 8x8x8
-                dataEnd = offset + (width * height * 3);
-                int[] pixels = new int[(dataEnd-offset)/3];
-                int pos = 0;
-                for(;offset < dataEnd; offset += 3) {
-                    pixels[pos++] = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) |
-                                    ((data[offset + 2] & 0xFF) << 16) | 0xFF000000;
-                }
-                image.setRGB(0, 0, width, height, pixels, 0, width);
-            } else if((entry.type & 0x7F) == 0x7E) { //ARGB 16bit 1x5x5x5
-                dataEnd = offset + (width * height * 2);
-                int[] pixels = new int[(dataEnd-offset)/2];
-                int pos = 0;
-                for(;offset < dataEnd; offset += 2) {
-                    pixels[pos++] = ((data[offset] & 0x1F) << 3) | ((data[offset] & 0xE0) << 6) |
-                                    ((data[offset + 1] & 0x03) << 14) | ((data[offset + 1] & 0x7C) << 17) |
-                                    ((((data[offset + 1] & 0x80) >> 7) * 255) << 24);
-                }
-                image.setRGB(0, 0, width, height, pixels, 0, width);
-            } else if((entry.type & 0x7F) == 0x78) { //RGB 16bit 5x6x5
-                dataEnd = offset + (width * height * 2);
-                int[] pixels = new int[(dataEnd-offset)/2];
-                int pos = 0;
-                for(;offset < dataEnd; offset += 2) {
-                    pixels[pos++] = ((data[offset] & 0x1F) << 3) | ((data[offset] & 0xE0) << 5) |
-                                    ((data[offset + 1] & 0x07) << 13) | ((data[offset + 1] & 0xF8) << 16) |
-                                    0xFF000000;
-                }
-                image.setRGB(0, 0, width, height, pixels, 0, width);
-                dataEnd = offset + (width * height * 2);
-            } else if((entry.type & 0x7F) == 0x6D) { //ARGB 16bit 4x4x4x4
-                int[] pixels = new int[(dataEnd-offset)/2];
-                int pos = 0;
-                for(;offset < dataEnd; offset += 2) {
-                    pixels[pos++] = ((data[offset] & 0x0F) * 17) | (((data[offset] & 0xF0) << 8) * 17) |
-                                    (((data[offset + 1] & 0x0F) * 17) << 20) |
-                                    ((((data[offset + 1] & 0xF0) >>> 4) * 17) << 24);
-                }
-                image.setRGB(0, 0, width, height, pixels, 0, width);
             }
-            entry.images.add(image);
         }
     }
 
@@ -361,6 +763,7 @@ public class DBPFFSH extends DBPFType {
         int xOffset;
         int yOffset;
         int mipCount;
-        ArrayList<BufferedImage> images = new ArrayList<BufferedImage>();
+        boolean parsed;
+        BufferedImage[] images;
     }
 }
@@ -1,5 +1,10 @@
 package jdbpfx.types;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
 import jdbpfx.DBPFTGI;
 import jdbpfx.DBPFType;
 import jdbpfx.util.DBPFUtil;
@@ -27,20 +32,7 @@ public class DBPFLText extends AbstractTextType {
         this.compressed = compressed;
         this.modified = false;
 
-        String s = "";
-        int unicode = 0x00;
-        if (data.length > 3) {
-            unicode = (int) DBPFUtil.getUint(data, 0x03, 1);
-        }
-        // fourth is 0x10 as unicode indicator
-        if (unicode == 0x10) {
-            int numberOfChars = (int) DBPFUtil.getUint(data, 0x00, 3);
-            s = DBPFUtil.getUnicode(data, 4, numberOfChars);
-        } else {
-            s = DBPFUtil.getChars(data, 0, data.length);
-        }
-        this.data = new char[s.length()];
-        s.getChars(0, s.length(), this.data, 0);
+        this.data = decode(data);
         // 4 (UNICODE Identifier), 2*dataLength (UNICODE Char)
         this.decompressedSize = 4 + 2 * this.data.length;
     }
@@ -84,12 +76,11 @@ public class DBPFLText extends AbstractTextType {
         if(!modified) {
             return rawData;
         } else {
-            String s = getString();
-            byte[] dData = new byte[2 * s.length() + 4];
-            DBPFUtil.setUint(s.length(), dData, 0x00, 3);
+            byte[] dData = new byte[2 * data.length + 4];
+            DBPFUtil.setUint(data.length, dData, 0x00, 3);
             // fourth is always 0x10 as UNICODE indicator
             DBPFUtil.setUint(0x10, dData, 0x03, 1);
-            DBPFUtil.setUnicode(s, dData, 0x04);
+            ByteBuffer.wrap(dData, 4, 2 * data.length).order(ByteOrder.LITTLE_ENDIAN).asCharBuffer().put(data);
             rawData = dData;
             modified = false;
             return dData;
@@ -100,4 +91,103 @@ public class DBPFLText extends AbstractTextType {
     public Type getType() {
         return DBPFType.Type.LTEXT;
     }
+
+    /**
+     * Returns a read-only view of the text. Unless the text has been
+     * modified, the view decodes the characters from the raw data on access,
+     * without copying them.
+     *
+     * @return The text
+     */
+    public CharSequence getCharSequence() {
+        if(!modified) {
+            return getCharSequence(rawData);
+        } else {
+            return CharBuffer.wrap(data).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Returns a read-only view of the text contained in the uncompressed
+     * data of an LTEXT entry. The characters are decoded from the data on
+     * access, so this is suited for scanning many texts without creating a
+     * {@code DBPFLText} for each of them.
+     *
+     * @param data
+     *            The uncompressed data of an LTEXT entry
+     * @return The text
+     */
+    public static CharSequence getCharSequence(byte[] data) {
+        if (isUnicode(data)) {
+            return ByteBuffer.wrap(data, 4, 2 * getUnicodeLength(data))
+                    .order(ByteOrder.LITTLE_ENDIAN).asCharBuffer().asReadOnlyBuffer();
+        } else {
+            return new Latin1Sequence(data, 0, data.length);
+        }
+    }
+
+    private static boolean isUnicode(byte[] data) {
+        // fourth is 0x10 as unicode indicator
+        return data.length > 3 && DBPFUtil.getUint(data, 0x03, 1) == 0x10;
+    }
+
+    /**
+     * @return the number of characters, limited by the size of the data
+     */
+    private static int getUnicodeLength(byte[] data) {
+        int numberOfChars = (int) DBPFUtil.getUint(data, 0x00, 3);
+        return Math.min(numberOfChars, (data.length - 4) / 2);
+    }
+
+    private static char[] decode(byte[] data) {
+        char[] chars;
+        if (isUnicode(data)) {
+            chars = new char[getUnicodeLength(data)];
+            ByteBuffer.wrap(data, 4, 2 * chars.length).order(ByteOrder.LITTLE_ENDIAN).asCharBuffer().get(chars);
+        } else {
+            chars = new String(data, StandardCharsets.ISO_8859_1).toCharArray();
+        }
+        return chars;
+    }
+
+    /**
+     * A view of single byte characters.
+     */
+    private static class Latin1Sequence implements CharSequence {
+
+        private final byte[] data;
+        private final int start, end;
+
+        Latin1Sequence(byte[] data, int start, int end) {
+            this.data = data;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return (char) (data[start + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > end - start || from > to) {
+                throw new IndexOutOfBoundsException(from + ", " + to);
+            }
+            return new Latin1Sequence(data, start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+    }
 }
@@ -1,8 +1,13 @@
 package jdbpfx.types;
 
-import java.nio.charset.Charset;
+import java.nio.BufferOverflowException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 
 import jdbpfx.DBPFTGI;
@@ -47,22 +52,72 @@ public class DBPFS3D extends DBPFType {
     public float displacement;
     public long numAnimGroups;
     public AnimGroup[] animGroups;
+
+    /**
+     * The number of floats per vertex in the flat vertex data: x, y, z, u, v.
+     */
+    public static final int VERT_STRIDE = 5;
+
+    private final boolean flat;
+
+    /**
+     * The sections of an S3D model that can be decoded.
+     */
+    public enum Section {
+        VERT(MAGICNUMBER_VERT),
+        INDX(MAGICNUMBER_INDX),
+        PRIM(MAGICNUMBER_PRIM),
+        MATS(MAGICNUMBER_MATS),
+        ANIM(MAGICNUMBER_ANIM);
+
+        private final byte[] magic;
+
+        private Section(String magic) {
+            this.magic = magic.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
     /**
      * Constructor.<br>
      */
     public DBPFS3D(byte[] data, DBPFTGI tgi, boolean compressed) {
+        this(data, tgi, compressed, false);
+    }
+
+    /**
+     * Constructor.<br>
+     * If flat is TRUE, the vertices and indices are decoded into the flat
+     * arrays {@link VertGroup#data} and {@link IndxGroup#data} only, and no
+     * {@link Vert} or {@link Indx} objects are created.
+     *
+     * @param flat
+     *            TRUE, to decode the flat representation only
+     */
+    public DBPFS3D(byte[] data, DBPFTGI tgi, boolean compressed, boolean flat) {
+        this(data, tgi, compressed, flat, EnumSet.allOf(Section.class));
+    }
+
+    /**
+     * Constructor.<br>
+     * Only the given sections are decoded, the fields of all the other
+     * sections remain unset. For example, decoding {@link Section#MATS} only
+     * suffices to list the texture IIDs of a model.
+     *
+     * @param flat
+     *            TRUE, to decode the flat representation only
+     * @param sections
+     *            The sections to decode
+     */
+    public DBPFS3D(byte[] data, DBPFTGI tgi, boolean compressed, boolean flat, Set<Section> sections) {
         super(tgi);
+        this.flat = flat;
         this.rawData = data;
         this.compressed = compressed;
         this.decompressedSize = data.length;
 
-        int offset = 0;
-
-        String fileAsString = new String(data, Charset.forName("US-ASCII"));
-
         String fileType = DBPFUtil.getChars(data, 0x00, 4);
         if (!fileType.equals(DBPFUtil.MAGICNUMBER_3DMD)) {
-            DBPFUtil.LOGGER.log(Level.SEVERE, "DBPFS3D decode failed: 3DMD Header: {0}", tgi.toString());
+            DBPFUtil.LOGGER.log(Level.SEVERE, "DBPFS3D decode failed: 3DMD Header: {0}", tgi);
             decoded = false;
             return;
         }
@@ -70,75 +125,89 @@ public class DBPFS3D extends DBPFType {
         long fileSize = DBPFUtil.getUint(data, 0x04, 4);
         String head = DBPFUtil.getChars(data, 0x08, 4);
         if(!head.equals(MAGICNUMBER_HEAD)) {
-            DBPFUtil.LOGGER.log(Level.SEVERE, "DBPFS3D decode failed: HEAD Section: {0}", tgi.toString());
+            DBPFUtil.LOGGER.log(Level.SEVERE, "DBPFS3D decode failed: HEAD Section: {0}", tgi);
             decoded = false;
             return;
         }
-        @SuppressWarnings("unused")
-        long headSize = DBPFUtil.getUint(data, 0x0C, 4);
         majorVersion = DBPFUtil.getUint(data, 0x10, 2);
         minorVersion = DBPFUtil.getUint(data, 0x12, 2);
-        //offset = 0x14;
-        //String vert = DBPFUtil.getChars(data, offset, 4);
-        //if(!vert.equals(MAGICNUMBER_VERT)) {
-            offset = fileAsString.indexOf(MAGICNUMBER_VERT);
-        //}
-        //long vertSize = DBPFUtil.getUint(data, offset + 4, 4);
-        if(!decodeVert(data, offset)) {
-            DBPFUtil.LOGGER.log(Level.SEVERE, "DBPFS3D decode failed: VERT Section: {0}", tgi.toString());
-            decoded = false;
-            return;
-        }
 
-        //offset += vertSize;
-        //String indx = DBPFUtil.getChars(data, offset, 4);
-        //if(!indx.equals(MAGICNUMBER_INDX)) {
-            offset = fileAsString.indexOf(MAGICNUMBER_INDX);
-        //}
-        //long indxSize = DBPFUtil.getUint(data, offset + 4, 4);
-        if(!decodeIndx(data, offset)) {
-            DBPFUtil.LOGGER.log(Level.SEVERE, "DBPFS3D decode failed: INDX Section: {0}", tgi.toString());
-            decoded = false;
-            return;
+        int[] offsets = findSections(data);
+        for(Section section : sections) {
+            int offset = offsets[section.ordinal()];
+            boolean success;
+            if(offset < 0) {
+                success = false;
+            } else {
+                switch(section) {
+                    case VERT: success = decodeVert(data, offset); break;
+                    case INDX: success = decodeIndx(data, offset); break;
+                    case PRIM: success = decodePrim(data, offset); break;
+                    case MATS: success = decodeMats(data, offset); break;
+                    default:   success = decodeAnim(data, offset); break;
+                }
+            }
+            if(!success) {
+                DBPFUtil.LOGGER.log(Level.SEVERE, "DBPFS3D decode failed: {0} Section: {1}",
+                        new Object[] {section, tgi});
+                decoded = false;
+                return;
+            }
         }
 
-        //offset += indxSize;
-        //String prim = DBPFUtil.getChars(data, offset, 4);
-        //if(!prim.equals(MAGICNUMBER_PRIM)) {
-            offset = fileAsString.indexOf(MAGICNUMBER_PRIM);
-        //}
-        //long primSize = DBPFUtil.getUint(data, offset + 4, 4);
-        if(!decodePrim(data, offset)) {
-            DBPFUtil.LOGGER.log(Level.SEVERE, "DBPFS3D decode failed: PRIM Section: {0}", tgi.toString());
-            decoded = false;
-            return;
-        }
+        decoded = true;
+    }
 
-        //offset += primSize;
-        //String mats = DBPFUtil.getChars(data, offset, 4);
-        //if(!mats.equals(MAGICNUMBER_MATS)) {
-            offset = fileAsString.indexOf(MAGICNUMBER_MATS);
-        //}
-        //long matsSize = DBPFUtil.getUint(data, offset + 4, 4);
-        if(!decodeMats(data, offset)) {
-            DBPFUtil.LOGGER.log(Level.SEVERE, "DBPFS3D decode failed: MATS Section: {0}", tgi.toString());
-            decoded = false;
-            return;
+    /**
+     * Locates the sections by walking the section headers, each consisting
+     * of the magic number and the size of the section including the header.
+     * If a size is inconsistent, the remaining sections are searched for by
+     * their magic numbers instead.
+     *
+     * @return the offsets of the sections, indexed by ordinal, or -1 for
+     *            sections that are missing
+     */
+    private static int[] findSections(byte[] data) {
+        Section[] values = Section.values();
+        int[] offsets = new int[values.length];
+        Arrays.fill(offsets, -1);
+
+        int offset = 0x08;
+        while(offset + 8 <= data.length) {
+            long size = DBPFUtil.getUint(data, offset + 4, 4);
+            if(size < 8 || offset + size > data.length) {
+                // corrupt header, fall back to searching
+                for(Section section : values) {
+                    if(offsets[section.ordinal()] < 0)
+                        offsets[section.ordinal()] = indexOf(data, section.magic, offset);
+                }
+                break;
+            }
+            for(Section section : values) {
+                if(offsets[section.ordinal()] < 0 && startsWith(data, offset, section.magic)) {
+                    offsets[section.ordinal()] = offset;
+                    break;
+                }
+            }
+            offset += (int)size;
         }
+        return offsets;
+    }
 
-        //offset += matsSize;
-        //String anim = DBPFUtil.getChars(data, offset, 4);
-        //if(!anim.equals(MAGICNUMBER_ANIM)) {
-            offset = fileAsString.indexOf(MAGICNUMBER_ANIM);
-        //}
-        //long animSize = DBPFUtil.getUint(data, offset + 4, 4);
-        if(!decodeAnim(data, offset)) {
-            DBPFUtil.LOGGER.log(Level.SEVERE, "DBPFS3D decode failed: ANIM Section: {0}", tgi.toString());
-            decoded = false;
-            return;
+    private static boolean startsWith(byte[] data, int offset, byte[] magic) {
+        for(int i=0;i<magic.length;i++) {
+            if(data[offset + i] != magic[i])
+                return false;
         }
+        return true;
+    }
 
-        decoded = true;
+    private static int indexOf(byte[] data, byte[] magic, int from) {
+        for(int i=from;i<=data.length - magic.length;i++) {
+            if(startsWith(data, i, magic))
+                return i;
+        }
+        return -1;
     }
 
     private boolean decodeVert(byte[] data, int vertOffset) {
@@ -153,12 +222,21 @@ public class DBPFS3D extends DBPFType {
             long unknown = DBPFUtil.getUint(data, offset, 2);
             offset += 2;
             vertGroups[x].numVerts = DBPFUtil.getUint(data, offset, 2);
-            vertGroups[x].verts = new Vert[(int)vertGroups[x].numVerts];
             offset += 2;
             vertGroups[x].format = DBPFUtil.getUint(data, offset, 4);
             if(vertGroups[x].format != 0x80004001L)
                 return false;
             offset += 4;
+            if(flat) {
+                float[] vertData = new float[(int)vertGroups[x].numVerts * VERT_STRIDE];
+                for(int y=0;y<vertData.length;y++) {
+                    vertData[y] = DBPFUtil.getFloat32(data, offset, 4);
+                    offset += 4;
+                }
+                vertGroups[x].data = vertData;
+                continue;
+            }
+            vertGroups[x].verts = new Vert[(int)vertGroups[x].numVerts];
             for(int y=0;y<vertGroups[x].numVerts;y++) {
                 vertGroups[x].verts[y] = new Vert();
                 vertGroups[x].verts[y].x = DBPFUtil.getFloat32(data, offset, 4);
@@ -192,8 +270,17 @@ public class DBPFS3D extends DBPFType {
                 return false;
             offset += 2;
             indxGroups[x].numIndxs = DBPFUtil.getUint(data, offset, 2);
-            indxGroups[x].indxs = new Indx[(int)indxGroups[x].numIndxs / 3];
             offset += 2;
+            if(flat) {
+                int[] indxData = new int[(int)indxGroups[x].numIndxs / 3 * 3];
+                for(int y=0;y<indxData.length;y++) {
+                    indxData[y] = (int)DBPFUtil.getUint(data, offset, 2);
+                    offset += 2;
+                }
+                indxGroups[x].data = indxData;
+                continue;
+            }
+            indxGroups[x].indxs = new Indx[(int)indxGroups[x].numIndxs / 3];
             for(int y=0;y<indxGroups[x].numIndxs / 3;y++) {
                 indxGroups[x].indxs[y] = new Indx();
                 indxGroups[x].indxs[y].a = DBPFUtil.getUint(data, offset, 2);
@@ -351,11 +438,25 @@ public class DBPFS3D extends DBPFType {
     }
 
     public List<Vert> getPolys(long frame, long group) {
-        if(!decoded)
+        if(!hasPolys())
             return null;
         LinkedList<Vert> verts = new LinkedList<Vert>();
         IndxGroup indxG = indxGroups[(int)animGroups[(int)group].indxBlock[(int)frame]];
         VertGroup vertG = vertGroups[(int)animGroups[(int)group].vertBlock[(int)frame]];
+        if(flat) {
+            // objects are only created on demand
+            for(int x=0;x<indxG.data.length;x++) {
+                int offset = indxG.data[x] * VERT_STRIDE;
+                Vert vert = new Vert();
+                vert.x = vertG.data[offset];
+                vert.y = vertG.data[offset + 1];
+                vert.z = vertG.data[offset + 2];
+                vert.u = vertG.data[offset + 3];
+                vert.v = vertG.data[offset + 4];
+                verts.add(vert);
+            }
+            return verts;
+        }
         for(int x=0;x<indxG.numIndxs / 3;x++) {
             verts.add(vertG.verts[(int)indxG.indxs[x].a]);
             verts.add(vertG.verts[(int)indxG.indxs[x].b]);
@@ -365,7 +466,7 @@ public class DBPFS3D extends DBPFType {
     }
 
     public List<Vert> getPolys(long frame) {
-        if(!decoded)
+        if(!hasPolys())
             return null;
         LinkedList<Vert> verts = new LinkedList<Vert>();
         for(int x=0;x<numAnimGroups;x++) {
@@ -374,10 +475,118 @@ public class DBPFS3D extends DBPFType {
         return verts;
     }
 
+    /**
+     * @return TRUE, if the sections needed for the polygons were decoded
+     */
+    private boolean hasPolys() {
+        return decoded && vertGroups != null && indxGroups != null && animGroups != null;
+    }
+
+    /**
+     * @return TRUE, if the vertices and indices were decoded into the flat
+     *            arrays only
+     */
+    public boolean isFlat() {
+        return flat;
+    }
+
+    /**
+     * Returns the number of vertices of the triangles of an animation group
+     * in a frame, i.e. the number of vertices written by
+     * {@link #getPolys(long, long, FloatBuffer)}.
+     *
+     * @return The number of vertices, or -1 if the S3D or its VERT, INDX or
+     *            ANIM sections are not decoded
+     */
+    public int getPolyVertCount(long frame, long group) {
+        if(!hasPolys())
+            return -1;
+        return (int)indxGroups[(int)animGroups[(int)group].indxBlock[(int)frame]].numIndxs / 3 * 3;
+    }
+
+    /**
+     * Returns the number of vertices of the triangles of all animation
+     * groups in a frame, i.e. the number of vertices written by
+     * {@link #getPolys(long, FloatBuffer)}.
+     *
+     * @return The number of vertices, or -1 if the S3D or its VERT, INDX or
+     *            ANIM sections are not decoded
+     */
+    public int getPolyVertCount(long frame) {
+        if(!hasPolys())
+            return -1;
+        int count = 0;
+        for(int x=0;x<numAnimGroups;x++) {
+            count += getPolyVertCount(frame, x);
+        }
+        return count;
+    }
+
+    /**
+     * Writes the vertices of the triangles of an animation group in a frame
+     * to the buffer, each as {@link #VERT_STRIDE} floats x, y, z, u, v.
+     *
+     * @param dst
+     *            The buffer, which must have room for
+     *            {@link #getPolyVertCount(long, long)} vertices
+     * @return The number of vertices written, or -1 if the S3D or its VERT,
+     *            INDX or ANIM sections are not decoded
+     * @throws BufferOverflowException
+     *            if there is insufficient space in the buffer
+     */
+    public int getPolys(long frame, long group, FloatBuffer dst) {
+        if(!hasPolys())
+            return -1;
+        IndxGroup indxG = indxGroups[(int)animGroups[(int)group].indxBlock[(int)frame]];
+        VertGroup vertG = vertGroups[(int)animGroups[(int)group].vertBlock[(int)frame]];
+        int count = getPolyVertCount(frame, group);
+        if(dst.remaining() < count * VERT_STRIDE)
+            throw new BufferOverflowException();
+
+        for(int x=0;x<count;x++) {
+            int index = indxG.data != null ? indxG.data[x] : (int)indxG.indxs[x / 3].get(x % 3);
+            if(vertG.data != null) {
+                dst.put(vertG.data, index * VERT_STRIDE, VERT_STRIDE);
+            } else {
+                Vert vert = vertG.verts[index];
+                dst.put(vert.x).put(vert.y).put(vert.z).put(vert.u).put(vert.v);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the vertices of the triangles of all animation groups in a
+     * frame to the buffer, each as {@link #VERT_STRIDE} floats x, y, z, u, v.
+     *
+     * @param dst
+     *            The buffer, which must have room for
+     *            {@link #getPolyVertCount(long)} vertices
+     * @return The number of vertices written, or -1 if the S3D or its VERT,
+     *            INDX or ANIM sections are not decoded
+     * @throws BufferOverflowException
+     *            if there is insufficient space in the buffer
+     */
+    public int getPolys(long frame, FloatBuffer dst) {
+        if(!hasPolys())
+            return -1;
+        if(dst.remaining() < getPolyVertCount(frame) * VERT_STRIDE)
+            throw new BufferOverflowException();
+        int count = 0;
+        for(int x=0;x<numAnimGroups;x++) {
+            count += getPolys(frame, x, dst);
+        }
+        return count;
+    }
+
     public static class VertGroup {
         public long numVerts;
         public long format;
         public Vert[] verts;
+        /**
+         * The interleaved x, y, z, u, v of all vertices, if decoded flat.
+         */
+        public float[] data;
     }
 
     public static class Vert {
@@ -388,10 +597,18 @@ public class DBPFS3D extends DBPFType {
         public long numIndxs;
         public long format;
         public Indx[] indxs;
+        /**
+         * The vertex indices of all triangles, if decoded flat.
+         */
+        public int[] data;
     }
 
     public static class Indx {
         public long a, b, c;
+
+        long get(int i) {
+            return i == 0 ? a : i == 1 ? b : c;
+        }
     }
 
     public static class PrimGroup {
@@ -1,5 +1,6 @@
 package jdbpfx.util;
 
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.SimpleDateFormat;
@@ -559,7 +560,7 @@ public class DBPFUtil {
     }
 
     /**
-     * Reads UNICODE till length reached.<br>
+     * Reads UNICODE (UTF-16LE) till length reached.<br>
      *
      * @param data
      *            The data
@@ -570,16 +571,11 @@ public class DBPFUtil {
      * @return A string
      */
     public static String getUnicode(byte[] data, int start, int length) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < length; i++) {
-            int val = data[start + 2 * i] + 256 * data[start + 2 * i + 1];
-            sb.append((char) val);
-        }
-        return sb.toString();
+        return new String(data, start, 2 * length, StandardCharsets.UTF_16LE);
     }
 
     /**
-     * Writes UNICODE till length of string reached.<br>
+     * Writes UNICODE (UTF-16LE) till length of string reached.<br>
      *
      * @param s
      *            The string
@@ -589,15 +585,8 @@ public class DBPFUtil {
      *            The start offset
      */
     public static void setUnicode(String s, byte[] data, int start) {
-        for (int i = 0; i < s.length(); i++) {
-            char[] c = Character.toChars(s.codePointAt(i));
-            data[start + 2 * i] = (byte) (c[0] & 0xFF);
-            if (c.length > 1) {
-                data[start + 2 * i + 1] = (byte) (c[1] & 0xFF);
-            } else {
-                data[start + 2 * i + 1] = 0;
-            }
-        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_16LE);
+        System.arraycopy(bytes, 0, data, start, bytes.length);
     }
 
     /**
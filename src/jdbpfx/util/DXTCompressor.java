@@ -0,0 +1,558 @@
+package jdbpfx.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An encoder for the DXT1 and DXT3 block compression formats, as used by
+ * FSH textures.
+ * <p>
+ * Two quality levels are supported. {@link Quality#RANGE_FIT} chooses the
+ * endpoints of each block from the extremes of its colors along their
+ * principal axis. {@link Quality#CLUSTER_FIT} additionally tries every
+ * ordered partition of the colors into the four palette entries and solves
+ * for the endpoints that minimize the squared error, which is slower but
+ * yields noticeably better gradients.
+ * <p>
+ * Compression may be distributed over the block rows of an image by passing
+ * an {@link ExecutorService}.
+ *
+ * @author memo
+ */
+public final class DXTCompressor {
+
+    /**
+     * The block compression formats.
+     */
+    public enum Format {
+        /**
+         * DXT1, opaque or with 1-bit alpha.
+         */
+        DXT1(0x60, 8),
+        /**
+         * DXT3, with explicit 4-bit alpha.
+         */
+        DXT3(0x61, 16);
+
+        private final int code;
+        private final int blockSize;
+
+        private Format(int code, int blockSize) {
+            this.code = code;
+            this.blockSize = blockSize;
+        }
+
+        /**
+         * @return the FSH format code
+         */
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * @return the number of bytes of a compressed 4x4 block
+         */
+        public int getBlockSize() {
+            return blockSize;
+        }
+    }
+
+    /**
+     * The quality levels of the encoder.
+     */
+    public enum Quality {
+        /**
+         * Fast, endpoints are the extremes along the principal axis.
+         */
+        RANGE_FIT,
+        /**
+         * Slower, endpoints are fitted to the best partition of the colors.
+         */
+        CLUSTER_FIT
+    }
+
+    /**
+     * Alpha values below this threshold are transparent in DXT1.
+     */
+    private static final int ALPHA_THRESHOLD = 128;
+
+    private DXTCompressor() {
+    }
+
+    /**
+     * Returns the size of a compressed image.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param format
+     *            The format
+     * @return The number of bytes
+     */
+    public static int getCompressedSize(int width, int height, Format format) {
+        return ((width + 3) / 4) * ((height + 3) / 4) * format.getBlockSize();
+    }
+
+    /**
+     * Compresses an image.
+     *
+     * @param argb
+     *            The pixels in the layout of {@code TYPE_INT_ARGB}, row by row
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param format
+     *            The format
+     * @param quality
+     *            The quality
+     * @param executor
+     *            The executor to compress the block rows with, or {@code null}
+     *            to compress in the current thread
+     * @return The compressed data
+     */
+    public static byte[] compress(int[] argb, int width, int height, Format format,
+            Quality quality, ExecutorService executor) {
+        byte[] dst = new byte[getCompressedSize(width, height, format)];
+        compress(argb, width, height, format, quality, dst, 0, executor);
+        return dst;
+    }
+
+    /**
+     * Compresses an image into the given array.
+     *
+     * @param argb
+     *            The pixels in the layout of {@code TYPE_INT_ARGB}, row by row
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param format
+     *            The format
+     * @param quality
+     *            The quality
+     * @param dst
+     *            The destination, which must provide
+     *            {@link #getCompressedSize} bytes from the offset on
+     * @param offset
+     *            The offset within the destination
+     * @param executor
+     *            The executor to compress the block rows with, or {@code null}
+     *            to compress in the current thread
+     * @throws IllegalStateException
+     *            if the current thread is interrupted while waiting for the
+     *            executor
+     */
+    public static void compress(final int[] argb, final int width, final int height, final Format format,
+            final Quality quality, final byte[] dst, final int offset, ExecutorService executor) {
+        if(argb.length < width * height)
+            throw new IllegalArgumentException("Raster is smaller than " + width + "x" + height);
+        if(dst.length - offset < getCompressedSize(width, height, format))
+            throw new IllegalArgumentException("Destination is too small");
+
+        final int blockRows = (height + 3) / 4;
+        final int rowSize = ((width + 3) / 4) * format.getBlockSize();
+        if(executor == null || blockRows < 2) {
+            BlockEncoder encoder = new BlockEncoder(format, quality);
+            for(int by=0;by<blockRows;by++)
+                encoder.encodeRow(argb, width, height, by, dst, offset + by * rowSize);
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(blockRows);
+        for(int i=0;i<blockRows;i++) {
+            final int by = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    new BlockEncoder(format, quality).encodeRow(argb, width, height, by, dst, offset + by * rowSize);
+                    return null;
+                }
+            });
+        }
+        try {
+            for(Future<Void> future : executor.invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Halves the size of an image by averaging each 2x2 square of pixels.
+     * Dimensions of 1 remain unchanged.
+     *
+     * @param argb
+     *            The pixels in the layout of {@code TYPE_INT_ARGB}, row by row
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @return The pixels of the image of size
+     *            {@code max(1, width/2) x max(1, height/2)}
+     */
+    public static int[] downsample(int[] argb, int width, int height) {
+        int w = Math.max(1, width / 2), h = Math.max(1, height / 2);
+        int[] result = new int[w * h];
+        for(int y=0;y<h;y++) {
+            int y0 = Math.min(2 * y, height - 1), y1 = Math.min(2 * y + 1, height - 1);
+            for(int x=0;x<w;x++) {
+                int x0 = Math.min(2 * x, width - 1), x1 = Math.min(2 * x + 1, width - 1);
+                int p0 = argb[y0 * width + x0], p1 = argb[y0 * width + x1],
+                    p2 = argb[y1 * width + x0], p3 = argb[y1 * width + x1];
+                int pixel = 0;
+                for(int shift=0;shift<32;shift+=8) {
+                    int sum = ((p0 >>> shift) & 0xFF) + ((p1 >>> shift) & 0xFF) +
+                              ((p2 >>> shift) & 0xFF) + ((p3 >>> shift) & 0xFF);
+                    pixel |= ((sum + 2) >> 2) << shift;
+                }
+                result[y * w + x] = pixel;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encodes blocks, reusing its buffers across blocks. Instances are not
+     * thread-safe.
+     */
+    private static class BlockEncoder {
+
+        private final Format format;
+        private final Quality quality;
+
+        private final int[] red = new int[16], green = new int[16], blue = new int[16], alpha = new int[16];
+        private final boolean[] opaque = new boolean[16];
+        private final float[] projection = new float[16];
+        private final int[] order = new int[16];
+        private final float[] sums = new float[17 * 3];
+        private final int[] paletteRed = new int[4], paletteGreen = new int[4], paletteBlue = new int[4];
+        private int[] indices = new int[16], candidate = new int[16];
+        private final float[] mean = new float[3], axis = new float[3];
+        private final float[] start = new float[3], end = new float[3], best = new float[6];
+        private int fitColor0, fitColor1;
+
+        BlockEncoder(Format format, Quality quality) {
+            this.format = format;
+            this.quality = quality;
+        }
+
+        void encodeRow(int[] argb, int width, int height, int by, byte[] dst, int offset) {
+            for(int bx=0;bx*4<width;bx++) {
+                loadBlock(argb, width, height, bx, by);
+                encodeBlock(dst, offset + bx * format.getBlockSize());
+            }
+        }
+
+        /**
+         * Loads the pixels of a block. Pixels beyond the edges of the image
+         * repeat the last row or column.
+         */
+        private void loadBlock(int[] argb, int width, int height, int bx, int by) {
+            for(int y=0;y<4;y++) {
+                int row = Math.min(by * 4 + y, height - 1) * width;
+                for(int x=0;x<4;x++) {
+                    int pixel = argb[row + Math.min(bx * 4 + x, width - 1)];
+                    int i = y * 4 + x;
+                    alpha[i] = pixel >>> 24;
+                    red[i] = (pixel >> 16) & 0xFF;
+                    green[i] = (pixel >> 8) & 0xFF;
+                    blue[i] = pixel & 0xFF;
+                }
+            }
+        }
+
+        private void encodeBlock(byte[] dst, int offset) {
+            int colorOffset = offset;
+            int count = 0;
+            if(format == Format.DXT3) {
+                for(int i=0;i<16;i+=2) {
+                    int a0 = (alpha[i] * 15 + 127) / 255, a1 = (alpha[i + 1] * 15 + 127) / 255;
+                    dst[offset + i / 2] = (byte)(a0 | (a1 << 4));
+                }
+                colorOffset += 8;
+                for(int i=0;i<16;i++)
+                    opaque[i] = true;
+                count = 16;
+            } else {
+                for(int i=0;i<16;i++) {
+                    opaque[i] = alpha[i] >= ALPHA_THRESHOLD;
+                    if(opaque[i])
+                        count++;
+                }
+            }
+
+            if(count == 0) {
+                // fully transparent, 3-color mode with all indices 3
+                writeColors(dst, colorOffset, 0, 0);
+                for(int i=0;i<4;i++)
+                    dst[colorOffset + 4 + i] = (byte)0xFF;
+                return;
+            }
+            boolean fourColors = count == 16;
+
+            computeAxis();
+            int minIndex = -1, maxIndex = -1;
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            for(int i=0;i<16;i++) {
+                float p = red[i] * axis[0] + green[i] * axis[1] + blue[i] * axis[2];
+                projection[i] = p;
+                if(!opaque[i])
+                    continue;
+                if(p < min) {
+                    min = p;
+                    minIndex = i;
+                }
+                if(p > max) {
+                    max = p;
+                    maxIndex = i;
+                }
+            }
+            int color0 = to565(red[maxIndex], green[maxIndex], blue[maxIndex]);
+            int color1 = to565(red[minIndex], green[minIndex], blue[minIndex]);
+            long error = evaluate(color0, color1, fourColors);
+            swapIndices();
+
+            if(quality == Quality.CLUSTER_FIT && fourColors) {
+                if(clusterFit() && evaluate(fitColor0, fitColor1, true) < error) {
+                    color0 = fitColor0;
+                    color1 = fitColor1;
+                    swapIndices();
+                }
+            }
+
+            // the order of the endpoints selects the mode of the block
+            if(fourColors ? color0 < color1 : color0 > color1) {
+                int tmp = color0;
+                color0 = color1;
+                color1 = tmp;
+                for(int i=0;i<16;i++) {
+                    if(indices[i] < 2 || fourColors)
+                        indices[i] ^= 1;
+                }
+            } else if(fourColors && color0 == color1) {
+                for(int i=0;i<16;i++)
+                    indices[i] = 0;
+            }
+
+            writeColors(dst, colorOffset, color0, color1);
+            for(int y=0;y<4;y++) {
+                dst[colorOffset + 4 + y] = (byte)(indices[y * 4] | (indices[y * 4 + 1] << 2) |
+                        (indices[y * 4 + 2] << 4) | (indices[y * 4 + 3] << 6));
+            }
+        }
+
+        private void swapIndices() {
+            int[] tmp = indices;
+            indices = candidate;
+            candidate = tmp;
+        }
+
+        /**
+         * Computes the mean and the principal axis of the opaque colors.
+         */
+        private void computeAxis() {
+            float n = 0;
+            mean[0] = mean[1] = mean[2] = 0;
+            for(int i=0;i<16;i++) {
+                if(opaque[i]) {
+                    mean[0] += red[i];
+                    mean[1] += green[i];
+                    mean[2] += blue[i];
+                    n++;
+                }
+            }
+            mean[0] /= n;
+            mean[1] /= n;
+            mean[2] /= n;
+
+            float c00 = 0, c01 = 0, c02 = 0, c11 = 0, c12 = 0, c22 = 0;
+            for(int i=0;i<16;i++) {
+                if(opaque[i]) {
+                    float r = red[i] - mean[0], g = green[i] - mean[1], b = blue[i] - mean[2];
+                    c00 += r * r;
+                    c01 += r * g;
+                    c02 += r * b;
+                    c11 += g * g;
+                    c12 += g * b;
+                    c22 += b * b;
+                }
+            }
+
+            // power iteration
+            float x = 1, y = 1, z = 1;
+            for(int k=0;k<8;k++) {
+                float nx = c00 * x + c01 * y + c02 * z;
+                float ny = c01 * x + c11 * y + c12 * z;
+                float nz = c02 * x + c12 * y + c22 * z;
+                float m = Math.max(Math.abs(nx), Math.max(Math.abs(ny), Math.abs(nz)));
+                if(m < 1e-6f)
+                    break;
+                x = nx / m;
+                y = ny / m;
+                z = nz / m;
+            }
+            float length = (float)Math.sqrt(x * x + y * y + z * z);
+            axis[0] = x / length;
+            axis[1] = y / length;
+            axis[2] = z / length;
+        }
+
+        /**
+         * Orders the colors along the principal axis and finds the partition
+         * into four consecutive clusters whose least squares endpoints have
+         * the smallest error.
+         *
+         * @return TRUE, if endpoints were found
+         */
+        private boolean clusterFit() {
+            // insertion sort by projection
+            for(int i=0;i<16;i++) {
+                int j = i;
+                for(;j>0 && projection[order[j - 1]] > projection[i];j--)
+                    order[j] = order[j - 1];
+                order[j] = i;
+            }
+            sums[0] = sums[1] = sums[2] = 0;
+            for(int i=0;i<16;i++) {
+                int p = order[i];
+                sums[3 * i + 3] = sums[3 * i] + red[p];
+                sums[3 * i + 4] = sums[3 * i + 1] + green[p];
+                sums[3 * i + 5] = sums[3 * i + 2] + blue[p];
+            }
+
+            float bestError = Float.MAX_VALUE;
+            for(int i=0;i<=16;i++) {
+                for(int j=i;j<=16;j++) {
+                    for(int k=j;k<=16;k++) {
+                        int n1 = j - i, n2 = k - j;
+                        float alpha2 = i + n1 * (4f / 9) + n2 * (1f / 9);
+                        float beta2 = (16 - k) + n1 * (1f / 9) + n2 * (4f / 9);
+                        float alphaBeta = (n1 + n2) * (2f / 9);
+                        float det = alpha2 * beta2 - alphaBeta * alphaBeta;
+                        if(Math.abs(det) < 1e-6f)
+                            continue;
+
+                        float error = 0;
+                        for(int c=0;c<3;c++) {
+                            float part0 = sums[3 * i + c], part1 = sums[3 * j + c] - part0,
+                                  part2 = sums[3 * k + c] - sums[3 * j + c], part3 = sums[48 + c] - sums[3 * k + c];
+                            float alphaX = part0 + part1 * (2f / 3) + part2 * (1f / 3);
+                            float betaX = part3 + part1 * (1f / 3) + part2 * (2f / 3);
+                            float a = quantize((alphaX * beta2 - betaX * alphaBeta) / det, c);
+                            float b = quantize((betaX * alpha2 - alphaX * alphaBeta) / det, c);
+                            start[c] = a;
+                            end[c] = b;
+                            error += a * a * alpha2 + b * b * beta2 + 2 * a * b * alphaBeta
+                                     - 2 * a * alphaX - 2 * b * betaX;
+                        }
+                        if(error < bestError) {
+                            bestError = error;
+                            System.arraycopy(start, 0, best, 0, 3);
+                            System.arraycopy(end, 0, best, 3, 3);
+                        }
+                    }
+                }
+            }
+            if(bestError == Float.MAX_VALUE)
+                return false;
+
+            fitColor0 = to565(Math.round(best[0]), Math.round(best[1]), Math.round(best[2]));
+            fitColor1 = to565(Math.round(best[3]), Math.round(best[4]), Math.round(best[5]));
+            return true;
+        }
+
+        /**
+         * Clamps a color component and rounds it to the nearest value
+         * representable by 5 or 6 bits.
+         */
+        private static float quantize(float value, int component) {
+            if(value <= 0)
+                return 0;
+            if(value >= 255)
+                return 255;
+            if(component == 1) {
+                int g = (int)(value * 63 / 255 + 0.5f);
+                return (g * 65) >> 4;
+            } else {
+                int c = (int)(value * 31 / 255 + 0.5f);
+                return (c * 33) >> 2;
+            }
+        }
+
+        private static int to565(int r, int g, int b) {
+            int r5 = (r * 31 + 127) / 255, g6 = (g * 63 + 127) / 255, b5 = (b * 31 + 127) / 255;
+            return (r5 << 11) | (g6 << 5) | b5;
+        }
+
+        /**
+         * Builds the palette as decoded and assigns the nearest entry to each
+         * pixel, storing the indices in the candidate buffer.
+         *
+         * @return the squared error of the block
+         */
+        private long evaluate(int color0, int color1, boolean fourColors) {
+            int r0 = (((color0 >> 11) & 0x1F) * 33) >> 2, r1 = (((color1 >> 11) & 0x1F) * 33) >> 2,
+                g0 = (((color0 >> 5) & 0x3F) * 65) >> 4, g1 = (((color1 >> 5) & 0x3F) * 65) >> 4,
+                b0 = ((color0 & 0x1F) * 33) >> 2, b1 = ((color1 & 0x1F) * 33) >> 2;
+            paletteRed[0] = r0;
+            paletteGreen[0] = g0;
+            paletteBlue[0] = b0;
+            paletteRed[1] = r1;
+            paletteGreen[1] = g1;
+            paletteBlue[1] = b1;
+            int entries;
+            if(fourColors) {
+                paletteRed[2] = (2 * r0 + r1) / 3;
+                paletteGreen[2] = (2 * g0 + g1) / 3;
+                paletteBlue[2] = (2 * b0 + b1) / 3;
+                paletteRed[3] = (r0 + 2 * r1) / 3;
+                paletteGreen[3] = (g0 + 2 * g1) / 3;
+                paletteBlue[3] = (b0 + 2 * b1) / 3;
+                entries = 4;
+            } else {
+                paletteRed[2] = (r0 + r1) / 2;
+                paletteGreen[2] = (g0 + g1) / 2;
+                paletteBlue[2] = (b0 + b1) / 2;
+                entries = 3;
+            }
+
+            long error = 0;
+            for(int i=0;i<16;i++) {
+                if(!opaque[i]) {
+                    candidate[i] = 3;
+                    continue;
+                }
+                int bestIndex = 0, bestDistance = Integer.MAX_VALUE;
+                for(int e=0;e<entries;e++) {
+                    int dr = red[i] - paletteRed[e], dg = green[i] - paletteGreen[e], db = blue[i] - paletteBlue[e];
+                    int distance = dr * dr + dg * dg + db * db;
+                    if(distance < bestDistance) {
+                        bestDistance = distance;
+                        bestIndex = e;
+                    }
+                }
+                candidate[i] = bestIndex;
+                error += bestDistance;
+            }
+            return error;
+        }
+
+        private static void writeColors(byte[] dst, int offset, int color0, int color1) {
+            dst[offset] = (byte)color0;
+            dst[offset + 1] = (byte)(color0 >> 8);
+            dst[offset + 2] = (byte)color1;
+            dst[offset + 3] = (byte)(color1 >> 8);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package jdbpfx.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of ints, avoiding the boxing of a {@code List<Integer>}.
+ *
+ * @author memo
+ */
+final class IntList {
+
+    int[] data;
+    int size;
+
+    IntList() {
+        this(16);
+    }
+
+    IntList(int capacity) {
+        data = new int[Math.max(1, capacity)];
+    }
+
+    void add(int value) {
+        if(size == data.length)
+            data = Arrays.copyOf(data, size * 2);
+        data[size++] = value;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
@@ -1,5 +1,8 @@
 package jdbpfx.util;
 
+import java.util.Arrays;
+import java.util.Collection;
+
 import jdbpfx.DBPFTGI;
 
 /**
@@ -10,6 +13,12 @@ import jdbpfx.DBPFTGI;
 public abstract class TGIFilter {
     // TODO make TGIFilter serializable
 
+    /**
+     * Number of masks above which the varargs factory methods compile the
+     * masks instead of testing them one by one.
+     */
+    private static final int COMPILE_THRESHOLD = 8;
+
     /**
      * This method is used for filtering.
      *
@@ -21,11 +30,16 @@ public abstract class TGIFilter {
     /**
      * Returns a {@code TGIFilter} that accepts all TGIs that match any of the
      * masks.
+     * <p>
+     * Large numbers of masks are compiled as by {@link #accept(Collection)}.
      *
      * @param tgiMasks the TGI masks.
      * @return the filter.
      */
     public static TGIFilter accept(final DBPFTGI... tgiMasks) {
+        if (tgiMasks.length > COMPILE_THRESHOLD) {
+            return accept(Arrays.asList(tgiMasks));
+        }
         return new TGIFilter() {
             @Override
             public boolean accepts(DBPFTGI tgi) {
@@ -42,11 +56,16 @@ public abstract class TGIFilter {
     /**
      * Returns a {@code TGIFilter} that rejects all TGIs that match any of the
      * masks.
+     * <p>
+     * Large numbers of masks are compiled as by {@link #reject(Collection)}.
      *
      * @param tgiMasks the TGI masks.
      * @return the filter.
      */
     public static TGIFilter reject(final DBPFTGI... tgiMasks) {
+        if (tgiMasks.length > COMPILE_THRESHOLD) {
+            return reject(Arrays.asList(tgiMasks));
+        }
         return new TGIFilter() {
             @Override
             public boolean accepts(DBPFTGI tgi) {
@@ -59,4 +78,164 @@ public abstract class TGIFilter {
             }
         };
     }
+
+    /**
+     * Returns a {@code TGIFilter} that accepts all TGIs that match any of the
+     * masks.
+     * <p>
+     * The masks are compiled into a decision tree that looks up the type, group
+     * and instance of a TGI in hash tables, following the branches of both the
+     * exact and the null (-1) components of the masks. Thus, the cost of
+     * filtering a TGI does not depend on the number of masks, which is
+     * suitable for filters of thousands of TGIs. Later modifications of the
+     * collection do not affect the filter.
+     *
+     * @param tgiMasks the TGI masks.
+     * @return the filter.
+     */
+    public static TGIFilter accept(Collection<? extends DBPFTGI> tgiMasks) {
+        final MaskTree tree = new MaskTree(tgiMasks);
+        return new TGIFilter() {
+            @Override
+            public boolean accepts(DBPFTGI tgi) {
+                return tree.matches(tgi);
+            }
+        };
+    }
+
+    /**
+     * Returns a {@code TGIFilter} that rejects all TGIs that match any of the
+     * masks. The masks are compiled as described in {@link #accept(Collection)}.
+     *
+     * @param tgiMasks the TGI masks.
+     * @return the filter.
+     */
+    public static TGIFilter reject(Collection<? extends DBPFTGI> tgiMasks) {
+        final MaskTree tree = new MaskTree(tgiMasks);
+        return new TGIFilter() {
+            @Override
+            public boolean accepts(DBPFTGI tgi) {
+                return !tree.matches(tgi);
+            }
+        };
+    }
+
+    /**
+     * A decision tree of TGI masks with one level for each of the type, group
+     * and instance components. Every node maps exact component IDs to child
+     * nodes and has a separate child for null components.
+     */
+    private static final class MaskTree {
+
+        private static final int LEVELS = 3;
+        private final Node root = new Node();
+
+        MaskTree(Collection<? extends DBPFTGI> tgiMasks) {
+            for (DBPFTGI mask : tgiMasks) {
+                Node node = root;
+                for (int level = 0; level < LEVELS; level++) {
+                    long id = component(mask, level);
+                    if (id == -1L) {
+                        if (node.wildcard == null) {
+                            node.wildcard = new Node();
+                        }
+                        node = node.wildcard;
+                    } else {
+                        node = node.getOrCreate((int) id);
+                    }
+                }
+            }
+        }
+
+        private static long component(DBPFTGI tgi, int level) {
+            switch (level) {
+                case 0: return tgi.getType();
+                case 1: return tgi.getGroup();
+                default: return tgi.getInstance();
+            }
+        }
+
+        boolean matches(DBPFTGI tgi) {
+            return matches(root, tgi, 0);
+        }
+
+        private static boolean matches(Node node, DBPFTGI tgi, int level) {
+            if (level == LEVELS) {
+                // leaf nodes only exist for the paths of added masks
+                return true;
+            }
+            if (node.wildcard != null && matches(node.wildcard, tgi, level + 1)) {
+                return true;
+            }
+            long id = component(tgi, level);
+            if (id != -1L) {
+                // null components of the TGI only match null components of masks
+                Node child = node.get((int) id);
+                return child != null && matches(child, tgi, level + 1);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A node of the {@link MaskTree}, using an open-addressing hash table of
+     * 32-bit component IDs to avoid boxing.
+     */
+    private static final class Node {
+
+        Node wildcard;
+        private int[] keys = new int[4];
+        private Node[] children = new Node[4];
+        private int size = 0;
+
+        private static int slot(int key, int mask) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        Node get(int key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                Node child = children[i];
+                if (child == null || keys[i] == key) {
+                    return child;
+                }
+            }
+        }
+
+        Node getOrCreate(int key) {
+            Node child = get(key);
+            if (child == null) {
+                if (2 * (size + 1) > keys.length) {
+                    resize();
+                }
+                child = new Node();
+                put(key, child);
+                size++;
+            }
+            return child;
+        }
+
+        private void put(int key, Node child) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (children[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            children[i] = child;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            Node[] oldChildren = children;
+            keys = new int[2 * oldKeys.length];
+            children = new Node[2 * oldChildren.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldChildren[i] != null) {
+                    put(oldKeys[i], oldChildren[i]);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,467 @@
+package jdbpfx.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import jdbpfx.DBPFFile;
+import jdbpfx.DBPFFile.DirectDBPFEntry;
+import jdbpfx.DBPFTGI;
+import jdbpfx.DBPFType;
+import jdbpfx.types.DBPFLText;
+import jdbpfx.types.DBPFLUA;
+import jdbpfx.types.DBPFRUL;
+import jdbpfx.types.DBPFSC4Path;
+
+/**
+ * An inverted index of the words contained in the text entries (LTEXT, LUA,
+ * RUL and SC4Path) of a set of DBPF files, which allows to find the entries
+ * containing a word, a prefix or a substring without reading the files again.
+ * <p>
+ * Words are maximal sequences of letters, digits and underscores, and are
+ * compared case-insensitively, so a hex ID such as {@code 0x5d7c3b1a} is
+ * a single word.
+ * <p>
+ * The index can be {@link #update updated} incrementally: only files that
+ * are new or whose size or modification date changed are read again. The
+ * index can be {@link #save saved} to and {@link #load loaded} from a file.
+ * <p>
+ * All methods are synchronized.
+ *
+ * @author memo
+ */
+public class TextIndex {
+
+    private static final int MAGIC = 0x4A545849; // JTXI
+    private static final int VERSION = 1;
+
+    /**
+     * The filter selecting the text entries.
+     */
+    private static final TGIFilter TEXT_FILTER = TGIFilter.accept(
+            DBPFTGI.LTEXT, DBPFTGI.LUA, DBPFTGI.LUA_GEN, DBPFTGI.RUL, DBPFTGI.SC4PATH);
+
+    private final Map<String, FileRecord> files = new LinkedHashMap<String, FileRecord>();
+    private final List<String> docFiles = new ArrayList<String>();
+    private final List<DBPFTGI> docTGIs = new ArrayList<DBPFTGI>();
+    private final BitSet deadDocs = new BitSet();
+    private final Map<String, IntList> postings = new HashMap<String, IntList>();
+
+    /**
+     * The sorted words, created on demand for prefix and substring queries.
+     */
+    private String[] sortedWords;
+
+    /**
+     * A document of the index, that is, a text entry of a DBPF file.
+     */
+    public static final class Hit {
+        private final File file;
+        private final DBPFTGI tgi;
+
+        private Hit(File file, DBPFTGI tgi) {
+            this.file = file;
+            this.tgi = tgi;
+        }
+
+        /**
+         * @return the DBPF file containing the entry
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the TGI of the entry
+         */
+        public DBPFTGI getTGI() {
+            return tgi;
+        }
+
+        @Override
+        public String toString() {
+            return file + ": " + tgi;
+        }
+    }
+
+    private static final class FileRecord {
+        final long lastModified, length;
+        final int[] docs;
+
+        FileRecord(long lastModified, long length, int[] docs) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.docs = docs;
+        }
+    }
+
+    /**
+     * Brings the index up to date with the given set of files. Files that
+     * are no longer contained in the set or have been modified are removed
+     * from the index, and new or modified files are read and added.
+     *
+     * @param dbpfFiles
+     *            The complete set of DBPF files to be indexed
+     * @return the number of files that were read
+     */
+    public synchronized int update(Collection<File> dbpfFiles) {
+        Set<String> current = new HashSet<String>();
+        int count = 0;
+        for(File file : dbpfFiles) {
+            String path = file.getAbsolutePath();
+            current.add(path);
+            FileRecord record = files.get(path);
+            if(record != null) {
+                if(record.lastModified == file.lastModified() && record.length == file.length())
+                    continue;
+                remove(path);
+            }
+            if(add(file, path))
+                count++;
+        }
+        for(String path : new ArrayList<String>(files.keySet())) {
+            if(!current.contains(path))
+                remove(path);
+        }
+        return count;
+    }
+
+    private void remove(String path) {
+        FileRecord record = files.remove(path);
+        for(int doc : record.docs)
+            deadDocs.set(doc);
+    }
+
+    private boolean add(File file, String path) {
+        long lastModified = file.lastModified(), length = file.length();
+        DBPFFile dbpfFile;
+        try {
+            dbpfFile = DBPFFile.Reader.read(file);
+        } catch (IOException e) {
+            DBPFUtil.LOGGER.log(Level.SEVERE, "[TextIndex] Could not read file: " + file, e);
+            return false;
+        }
+
+        IntList docs = new IntList();
+        Set<String> words = new HashSet<String>();
+        for(DirectDBPFEntry entry : dbpfFile.getEntries(TEXT_FILTER)) {
+            CharSequence text = getText(entry);
+            if(text == null)
+                continue;
+
+            int doc = docTGIs.size();
+            docTGIs.add(entry.getTGI());
+            docFiles.add(path);
+            docs.add(doc);
+
+            words.clear();
+            tokenize(text, words);
+            for(String word : words) {
+                IntList list = postings.get(word);
+                if(list == null) {
+                    list = new IntList(4);
+                    postings.put(word, list);
+                    sortedWords = null;
+                }
+                list.add(doc);
+            }
+        }
+        files.put(path, new FileRecord(lastModified, length, docs.toArray()));
+        return true;
+    }
+
+    private static CharSequence getText(DirectDBPFEntry entry) {
+        DBPFType type = entry.createType();
+        if(type instanceof DBPFLText)
+            return ((DBPFLText) type).getCharSequence();
+        else if(type instanceof DBPFLUA)
+            return ((DBPFLUA) type).getString();
+        else if(type instanceof DBPFRUL)
+            return ((DBPFRUL) type).getString();
+        else if(type instanceof DBPFSC4Path)
+            return ((DBPFSC4Path) type).getString();
+        return null;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Splits the text into lower case words.
+     */
+    private static void tokenize(CharSequence text, Collection<String> words) {
+        StringBuilder sb = new StringBuilder();
+        int length = text.length();
+        for(int i=0;i<=length;i++) {
+            char c = i < length ? text.charAt(i) : ' ';
+            if(isWordChar(c)) {
+                sb.append(Character.toLowerCase(c));
+            } else if(sb.length() > 0) {
+                words.add(sb.toString());
+                sb.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Finds the entries containing all the words of the query.
+     *
+     * @param query
+     *            One or more words
+     * @return the matching entries
+     */
+    public synchronized List<Hit> find(String query) {
+        return query(query, 0);
+    }
+
+    /**
+     * Finds the entries containing, for each word of the query, a word that
+     * starts with it.
+     *
+     * @param query
+     *            One or more word prefixes
+     * @return the matching entries
+     */
+    public synchronized List<Hit> findPrefix(String query) {
+        return query(query, 1);
+    }
+
+    /**
+     * Finds the entries containing, for each word of the query, a word that
+     * contains it.
+     *
+     * @param query
+     *            One or more parts of words
+     * @return the matching entries
+     */
+    public synchronized List<Hit> findSubstring(String query) {
+        return query(query, 2);
+    }
+
+    /**
+     * @param mode 0 for exact, 1 for prefix, 2 for substring matches
+     */
+    private List<Hit> query(String query, int mode) {
+        List<String> terms = new ArrayList<String>();
+        tokenize(query, terms);
+        if(terms.isEmpty())
+            return Collections.emptyList();
+
+        BitSet result = null;
+        for(String term : terms) {
+            BitSet docs = new BitSet();
+            if(mode == 0) {
+                addPostings(term, docs);
+            } else if(mode == 1) {
+                String[] words = getSortedWords();
+                int i = Arrays.binarySearch(words, term);
+                for(i = i < 0 ? -i - 1 : i;i<words.length && words[i].startsWith(term);i++)
+                    addPostings(words[i], docs);
+            } else {
+                for(String word : getSortedWords()) {
+                    if(word.contains(term))
+                        addPostings(word, docs);
+                }
+            }
+            if(result == null)
+                result = docs;
+            else
+                result.and(docs);
+        }
+        result.andNot(deadDocs);
+
+        List<Hit> hits = new ArrayList<Hit>(result.cardinality());
+        for(int doc=result.nextSetBit(0);doc>=0;doc=result.nextSetBit(doc + 1))
+            hits.add(new Hit(new File(docFiles.get(doc)), docTGIs.get(doc)));
+        return hits;
+    }
+
+    private void addPostings(String word, BitSet docs) {
+        IntList list = postings.get(word);
+        if(list != null) {
+            for(int i=0;i<list.size;i++)
+                docs.set(list.data[i]);
+        }
+    }
+
+    private String[] getSortedWords() {
+        if(sortedWords == null) {
+            sortedWords = postings.keySet().toArray(new String[postings.size()]);
+            Arrays.sort(sortedWords);
+        }
+        return sortedWords;
+    }
+
+    /**
+     * @return the number of indexed entries
+     */
+    public synchronized int getEntryCount() {
+        return docTGIs.size() - deadDocs.cardinality();
+    }
+
+    /**
+     * Removes the entries of removed or modified files from the internal
+     * structures. This is done automatically by {@link #save}.
+     */
+    public synchronized void compact() {
+        if(deadDocs.isEmpty())
+            return;
+
+        int[] newIds = new int[docTGIs.size()];
+        List<String> newFiles = new ArrayList<String>();
+        List<DBPFTGI> newTGIs = new ArrayList<DBPFTGI>();
+        for(int doc=0;doc<newIds.length;doc++) {
+            if(deadDocs.get(doc)) {
+                newIds[doc] = -1;
+            } else {
+                newIds[doc] = newTGIs.size();
+                newFiles.add(docFiles.get(doc));
+                newTGIs.add(docTGIs.get(doc));
+            }
+        }
+        docFiles.clear();
+        docFiles.addAll(newFiles);
+        docTGIs.clear();
+        docTGIs.addAll(newTGIs);
+        deadDocs.clear();
+
+        for(Map.Entry<String, FileRecord> e : files.entrySet()) {
+            FileRecord record = e.getValue();
+            for(int i=0;i<record.docs.length;i++)
+                record.docs[i] = newIds[record.docs[i]];
+        }
+        for(Iterator<IntList> it=postings.values().iterator();it.hasNext();) {
+            IntList list = it.next();
+            int size = 0;
+            for(int i=0;i<list.size;i++) {
+                int doc = newIds[list.data[i]];
+                if(doc >= 0)
+                    list.data[size++] = doc;
+            }
+            list.size = size;
+            if(size == 0) {
+                it.remove();
+                sortedWords = null;
+            }
+        }
+    }
+
+    /**
+     * Saves the index to a file.
+     *
+     * @param file
+     *            The file to write to
+     * @throws IOException
+     *            if an I/O error occurs
+     */
+    public synchronized void save(File file) throws IOException {
+        compact();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(files.size());
+            Map<String, Integer> fileIds = new HashMap<String, Integer>();
+            for(Map.Entry<String, FileRecord> e : files.entrySet()) {
+                fileIds.put(e.getKey(), fileIds.size());
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().lastModified);
+                out.writeLong(e.getValue().length);
+            }
+
+            out.writeInt(docTGIs.size());
+            for(int doc=0;doc<docTGIs.size();doc++) {
+                DBPFTGI tgi = docTGIs.get(doc);
+                out.writeInt(fileIds.get(docFiles.get(doc)));
+                out.writeInt((int)tgi.getType());
+                out.writeInt((int)tgi.getGroup());
+                out.writeInt((int)tgi.getInstance());
+            }
+
+            out.writeInt(postings.size());
+            for(Map.Entry<String, IntList> e : postings.entrySet()) {
+                IntList list = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeInt(list.size);
+                for(int i=0;i<list.size;i++)
+                    out.writeInt(list.data[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads an index from a file.
+     *
+     * @param file
+     *            The file that has been written by {@link #save}
+     * @return The index
+     * @throws IOException
+     *            if an I/O error occurs or the file is not a valid index
+     */
+    public static TextIndex load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a valid index file: " + file);
+
+            TextIndex index = new TextIndex();
+            String[] paths = new String[in.readInt()];
+            long[] lastModified = new long[paths.length], length = new long[paths.length];
+            for(int i=0;i<paths.length;i++) {
+                paths[i] = in.readUTF();
+                lastModified[i] = in.readLong();
+                length[i] = in.readLong();
+            }
+
+            int numDocs = in.readInt();
+            IntList[] fileDocs = new IntList[paths.length];
+            for(int i=0;i<paths.length;i++)
+                fileDocs[i] = new IntList();
+            for(int doc=0;doc<numDocs;doc++) {
+                int fileId = in.readInt();
+                long type = in.readInt() & 0xFFFFFFFFL, group = in.readInt() & 0xFFFFFFFFL,
+                     instance = in.readInt() & 0xFFFFFFFFL;
+                index.docFiles.add(paths[fileId]);
+                index.docTGIs.add(DBPFTGI.valueOf(type, group, instance));
+                fileDocs[fileId].add(doc);
+            }
+            for(int i=0;i<paths.length;i++)
+                index.files.put(paths[i], new FileRecord(lastModified[i], length[i], fileDocs[i].toArray()));
+
+            int numWords = in.readInt();
+            for(int w=0;w<numWords;w++) {
+                String word = in.readUTF();
+                IntList list = new IntList();
+                int size = in.readInt();
+                for(int i=0;i<size;i++)
+                    list.add(in.readInt());
+                index.postings.put(word, list);
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package jdbpfx.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A lightweight scanner for the text formats of DBPF subfiles, such as the
+ * T-Format (0x54) of exemplars and cohorts.
+ * <p>
+ * The scanner operates directly on the byte data of a subfile and iterates
+ * over its lines without creating any intermediate strings. Lines are
+ * terminated by 0x0D and/or 0x0A; empty lines are skipped, in accordance
+ * with {@link DBPFUtil#getLines(byte[], int)}. The static methods of this
+ * class parse values from ranges of a byte array.
+ *
+ * @author memo
+ */
+public final class TextScanner {
+
+    private final byte[] data;
+    private final int end;
+    private int pos;
+    private int lineStart;
+    private int lineEnd;
+
+    /**
+     * Creates a scanner for the data, starting at the given index.
+     *
+     * @param data
+     *            The data
+     * @param start
+     *            The start index
+     */
+    public TextScanner(byte[] data, int start) {
+        this(data, start, data.length);
+    }
+
+    /**
+     * Creates a scanner for the data within the given range.
+     *
+     * @param data
+     *            The data
+     * @param start
+     *            The start index (inclusive)
+     * @param end
+     *            The end index (exclusive)
+     */
+    public TextScanner(byte[] data, int start, int end) {
+        this.data = data;
+        this.pos = start;
+        this.end = end;
+        this.lineStart = start;
+        this.lineEnd = start;
+    }
+
+    /**
+     * Advances the scanner to the next non-empty line.
+     *
+     * @return TRUE, if there is another line; FALSE, if the end of the data
+     *            has been reached
+     */
+    public boolean nextLine() {
+        while (pos < end && isLineBreak(data[pos])) {
+            pos++;
+        }
+        if (pos >= end) {
+            lineStart = lineEnd = end;
+            return false;
+        }
+        lineStart = pos;
+        while (pos < end && !isLineBreak(data[pos])) {
+            pos++;
+        }
+        lineEnd = pos;
+        return true;
+    }
+
+    /**
+     * @return the data this scanner operates on
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the start index of the current line (inclusive)
+     */
+    public int getLineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return the end index of the current line (exclusive)
+     */
+    public int getLineEnd() {
+        return lineEnd;
+    }
+
+    private static boolean isLineBreak(byte b) {
+        return b == 0x0D || b == 0x0A;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b >= 0x00 && b <= 0x20;
+    }
+
+    /**
+     * Returns the index of the first occurrence of the character within
+     * the given range.
+     *
+     * @param data
+     *            The data
+     * @param c
+     *            The (ASCII) character to search for
+     * @param from
+     *            The start index (inclusive)
+     * @param to
+     *            The end index (exclusive)
+     * @return The index, or -1 if the character does not occur
+     */
+    public static int indexOf(byte[] data, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the last occurrence of the character within
+     * the given range.
+     *
+     * @param data
+     *            The data
+     * @param c
+     *            The (ASCII) character to search for
+     * @param from
+     *            The start index (inclusive)
+     * @param to
+     *            The end index (exclusive)
+     * @return The index, or -1 if the character does not occur
+     */
+    public static int lastIndexOf(byte[] data, char c, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Skips leading whitespace of the given range.
+     *
+     * @param data
+     *            The data
+     * @param from
+     *            The start index (inclusive)
+     * @param to
+     *            The end index (exclusive)
+     * @return The index of the first non-whitespace character, or {@code to}
+     */
+    public static int trimStart(byte[] data, int from, int to) {
+        while (from < to && isWhitespace(data[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Skips trailing whitespace of the given range.
+     *
+     * @param data
+     *            The data
+     * @param from
+     *            The start index (inclusive)
+     * @param to
+     *            The end index (exclusive)
+     * @return The index after the last non-whitespace character, or {@code from}
+     */
+    public static int trimEnd(byte[] data, int from, int to) {
+        while (to > from && isWhitespace(data[to - 1])) {
+            to--;
+        }
+        return to;
+    }
+
+    /**
+     * Compares the given range with a string, ignoring case and surrounding
+     * whitespace of the range.
+     *
+     * @param data
+     *            The data
+     * @param from
+     *            The start index (inclusive)
+     * @param to
+     *            The end index (exclusive)
+     * @param s
+     *            The (ASCII) string
+     * @return TRUE, if the range equals the string
+     */
+    public static boolean equalsIgnoreCase(byte[] data, int from, int to, String s) {
+        from = trimStart(data, from, to);
+        to = trimEnd(data, from, to);
+        if (to - from != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.toLowerCase((char) (data[from + i] & 0xFF)) != Character.toLowerCase(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the hex digits of the given range, excluding surrounding
+     * whitespace and an optional 0x prefix.
+     *
+     * @param data
+     *            The data
+     * @param from
+     *            The start index (inclusive)
+     * @param to
+     *            The end index (exclusive)
+     * @return The number of hex digits
+     */
+    public static int hexDigitCount(byte[] data, int from, int to) {
+        from = trimStart(data, from, to);
+        to = trimEnd(data, from, to);
+        if (hasHexPrefix(data, from, to)) {
+            from += 2;
+        }
+        return to - from;
+    }
+
+    private static boolean hasHexPrefix(byte[] data, int from, int to) {
+        return to - from >= 2 && data[from] == '0' && (data[from + 1] == 'x' || data[from + 1] == 'X');
+    }
+
+    /**
+     * Parses a hex value of the given range. Surrounding whitespace and an
+     * optional 0x prefix are ignored. Up to 16 hex digits are accepted,
+     * so 64-bit values do not overflow.
+     *
+     * @param data
+     *            The data
+     * @param from
+     *            The start index (inclusive)
+     * @param to
+     *            The end index (exclusive)
+     * @return The unsigned value
+     * @throws NumberFormatException
+     *            if the range does not contain a valid hex number
+     */
+    public static long parseHex(byte[] data, int from, int to) {
+        from = trimStart(data, from, to);
+        to = trimEnd(data, from, to);
+        if (hasHexPrefix(data, from, to)) {
+            from += 2;
+        }
+        if (from == to || to - from > 16) {
+            throw new NumberFormatException("Invalid hex number at index " + from);
+        }
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit((char) (data[i] & 0xFF), 16);
+            if (digit < 0) {
+                throw new NumberFormatException("Invalid hex digit at index " + i);
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
+    /**
+     * Parses a number of the given range in the manner of {@link Long#decode},
+     * that is, the number may be signed and either be hexadecimal (prefixed
+     * by 0x or #) or decimal. Surrounding whitespace is ignored.
+     *
+     * @param data
+     *            The data
+     * @param from
+     *            The start index (inclusive)
+     * @param to
+     *            The end index (exclusive)
+     * @return The value
+     * @throws NumberFormatException
+     *            if the range does not contain a valid number
+     */
+    public static long parseLong(byte[] data, int from, int to) {
+        from = trimStart(data, from, to);
+        to = trimEnd(data, from, to);
+        boolean negative = false;
+        if (from < to && (data[from] == '-' || data[from] == '+')) {
+            negative = data[from] == '-';
+            from++;
+        }
+        long result;
+        if (hasHexPrefix(data, from, to)) {
+            result = parseHex(data, from, to);
+        } else if (from < to && data[from] == '#') {
+            result = parseHex(data, from + 1, to);
+        } else {
+            if (from == to || to - from > 18) {
+                throw new NumberFormatException("Invalid decimal number at index " + from);
+            }
+            result = 0;
+            for (int i = from; i < to; i++) {
+                int digit = data[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Invalid decimal digit at index " + i);
+                }
+                result = result * 10 + digit;
+            }
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parses a float value of the given range. Plain integer values are
+     * converted directly, any other values are parsed according to
+     * {@link Float#parseFloat}.
+     *
+     * @param data
+     *            The data
+     * @param from
+     *            The start index (inclusive)
+     * @param to
+     *            The end index (exclusive)
+     * @return The float value
+     * @throws NumberFormatException
+     *            if the range does not contain a valid float number
+     */
+    public static float parseFloat(byte[] data, int from, int to) {
+        from = trimStart(data, from, to);
+        to = trimEnd(data, from, to);
+        int i = from;
+        if (i < to && (data[i] == '-' || data[i] == '+')) {
+            i++;
+        }
+        // integers of up to 7 digits are represented exactly by floats
+        if (i < to && to - i <= 7) {
+            int result = 0;
+            for (; i < to; i++) {
+                int digit = data[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                result = result * 10 + digit;
+            }
+            if (i == to) {
+                return data[from] == '-' ? -(float) result : (float) result;
+            }
+        }
+        return Float.parseFloat(new String(data, from, to - from, StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,272 @@
+package jdbpfx.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import jdbpfx.DBPFFile;
+import jdbpfx.DBPFFile.DirectDBPFEntry;
+import jdbpfx.DBPFTGI;
+import jdbpfx.types.DBPFS3D;
+
+/**
+ * The dependencies between the S3D models and the FSH textures of a set of
+ * DBPF files. Each model references its textures by the instance ID stored
+ * in its materials ({@link DBPFS3D.MatsGroup#IID}), which is resolved against
+ * the instance IDs of the texture entries.
+ * <p>
+ * The graph is stored in compressed sparse row form: the textures of model
+ * {@code m} are the indices {@code modelTextures[modelOffsets[m]]} up to
+ * {@code modelTextures[modelOffsets[m+1]]} (exclusive), and similarly for the
+ * models of each texture and for the unresolved instance IDs of each model.
+ * <p>
+ * The files are expected in loading order, as established by the
+ * {@link SimCityFileComparator}, so that entries of later files override
+ * entries of earlier ones with the same TGI (or, for textures, the same
+ * instance ID).
+ *
+ * @author memo
+ */
+public final class TextureDependencyGraph {
+
+    private final DBPFTGI[] models;
+    private final DBPFTGI[] textures;
+    private final int[] modelOffsets, modelTextures;
+    private final int[] textureOffsets, textureModels;
+    private final int[] missingOffsets, missingIIDs;
+
+    private TextureDependencyGraph(DBPFTGI[] models, DBPFTGI[] textures,
+            int[] modelOffsets, int[] modelTextures, int[] missingOffsets, int[] missingIIDs) {
+        this.models = models;
+        this.textures = textures;
+        this.modelOffsets = modelOffsets;
+        this.modelTextures = modelTextures;
+        this.missingOffsets = missingOffsets;
+        this.missingIIDs = missingIIDs;
+
+        // invert the model-to-texture adjacency
+        textureOffsets = new int[textures.length + 1];
+        for(int t : modelTextures)
+            textureOffsets[t + 1]++;
+        for(int t=0;t<textures.length;t++)
+            textureOffsets[t + 1] += textureOffsets[t];
+        textureModels = new int[modelTextures.length];
+        int[] fill = Arrays.copyOf(textureOffsets, textures.length);
+        for(int m=0;m<models.length;m++) {
+            for(int i=modelOffsets[m];i<modelOffsets[m + 1];i++)
+                textureModels[fill[modelTextures[i]]++] = m;
+        }
+    }
+
+    /**
+     * Builds the dependency graph of the models and textures in the given
+     * files. Only the MATS sections of the models are decoded.
+     *
+     * @param files
+     *            The DBPF files in loading order
+     * @param textureFilter
+     *            The filter that selects the texture entries, or {@code null}
+     *            to use the textures of {@link DBPFTGI#FSH_MISC}
+     * @param executor
+     *            The executor to decode the models with, or {@code null} to
+     *            decode in the current thread
+     * @return The graph
+     * @throws IllegalStateException
+     *            if the current thread is interrupted while waiting for the
+     *            executor
+     */
+    public static TextureDependencyGraph build(List<DBPFFile> files, TGIFilter textureFilter, ExecutorService executor) {
+        if(textureFilter == null)
+            textureFilter = TGIFilter.accept(DBPFTGI.FSH_MISC);
+
+        // later entries override earlier ones
+        Map<DBPFTGI, DirectDBPFEntry> modelEntries = new LinkedHashMap<DBPFTGI, DirectDBPFEntry>();
+        Map<Integer, DBPFTGI> textureEntries = new LinkedHashMap<Integer, DBPFTGI>();
+        for(DBPFFile file : files) {
+            for(DirectDBPFEntry entry : file.getEntries()) {
+                DBPFTGI tgi = entry.getTGI();
+                if(tgi.matches(DBPFTGI.S3D))
+                    modelEntries.put(tgi, entry);
+                else if(textureFilter.accepts(tgi))
+                    textureEntries.put((int)tgi.getInstance(), tgi);
+            }
+        }
+
+        DBPFTGI[] textures = textureEntries.values().toArray(new DBPFTGI[textureEntries.size()]);
+        Map<Integer, Integer> textureIndices = new LinkedHashMap<Integer, Integer>(textures.length * 2);
+        for(int t=0;t<textures.length;t++)
+            textureIndices.put((int)textures[t].getInstance(), t);
+
+        DBPFTGI[] models = modelEntries.keySet().toArray(new DBPFTGI[modelEntries.size()]);
+        List<int[]> iids = new ArrayList<int[]>(models.length);
+        if(executor == null) {
+            for(DirectDBPFEntry entry : modelEntries.values())
+                iids.add(readTextureIIDs(entry));
+        } else {
+            List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>(models.length);
+            for(final DirectDBPFEntry entry : modelEntries.values()) {
+                tasks.add(new Callable<int[]>() {
+                    @Override
+                    public int[] call() {
+                        return readTextureIIDs(entry);
+                    }
+                });
+            }
+            try {
+                for(Future<int[]> future : executor.invokeAll(tasks))
+                    iids.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading models", e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        int[] modelOffsets = new int[models.length + 1];
+        int[] missingOffsets = new int[models.length + 1];
+        IntList modelTextures = new IntList(), missingIIDs = new IntList();
+        for(int m=0;m<models.length;m++) {
+            for(int iid : iids.get(m)) {
+                Integer t = textureIndices.get(iid);
+                if(t != null)
+                    modelTextures.add(t);
+                else
+                    missingIIDs.add(iid);
+            }
+            modelOffsets[m + 1] = modelTextures.size;
+            missingOffsets[m + 1] = missingIIDs.size;
+        }
+        return new TextureDependencyGraph(models, textures, modelOffsets, modelTextures.toArray(),
+                missingOffsets, missingIIDs.toArray());
+    }
+
+    /**
+     * @return the distinct texture IIDs of the model, or an empty array if
+     *            the model could not be read
+     */
+    private static int[] readTextureIIDs(DirectDBPFEntry entry) {
+        byte[] data = entry.createData();
+        if(data == null)
+            return new int[0];
+        DBPFPackager packager = new DBPFPackager();
+        data = packager.decompress(data);
+        DBPFS3D s3d = new DBPFS3D(data, entry.getTGI(), packager.isCompressed(), false,
+                EnumSet.of(DBPFS3D.Section.MATS));
+        if(!s3d.decoded) {
+            DBPFUtil.LOGGER.log(Level.WARNING, "[TextureDependencyGraph] Skipping model: {0}", entry.getTGI());
+            return new int[0];
+        }
+
+        int[] result = new int[s3d.matsGroups.length];
+        int count = 0;
+        outer:
+        for(DBPFS3D.MatsGroup mats : s3d.matsGroups) {
+            int iid = (int)mats.IID;
+            for(int i=0;i<count;i++) {
+                if(result[i] == iid)
+                    continue outer;
+            }
+            result[count++] = iid;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return the number of models
+     */
+    public int getModelCount() {
+        return models.length;
+    }
+
+    /**
+     * @param model
+     *            The index of the model
+     * @return the TGI of the model
+     */
+    public DBPFTGI getModel(int model) {
+        return models[model];
+    }
+
+    /**
+     * @return the number of textures
+     */
+    public int getTextureCount() {
+        return textures.length;
+    }
+
+    /**
+     * @param texture
+     *            The index of the texture
+     * @return the TGI of the texture entry
+     */
+    public DBPFTGI getTexture(int texture) {
+        return textures[texture];
+    }
+
+    /**
+     * @param model
+     *            The index of the model
+     * @return the indices of the textures used by the model
+     */
+    public int[] getTextures(int model) {
+        return Arrays.copyOfRange(modelTextures, modelOffsets[model], modelOffsets[model + 1]);
+    }
+
+    /**
+     * @param texture
+     *            The index of the texture
+     * @return the indices of the models using the texture
+     */
+    public int[] getModels(int texture) {
+        return Arrays.copyOfRange(textureModels, textureOffsets[texture], textureOffsets[texture + 1]);
+    }
+
+    /**
+     * @param model
+     *            The index of the model
+     * @return the instance IDs referenced by the model, for which no texture
+     *            exists
+     */
+    public long[] getMissingIIDs(int model) {
+        long[] result = new long[missingOffsets[model + 1] - missingOffsets[model]];
+        for(int i=0;i<result.length;i++)
+            result[i] = missingIIDs[missingOffsets[model] + i] & 0xFFFFFFFFL;
+        return result;
+    }
+
+    /**
+     * @return the indices of the models that reference at least one missing
+     *            texture
+     */
+    public int[] getModelsWithMissingTextures() {
+        IntList result = new IntList();
+        for(int m=0;m<models.length;m++) {
+            if(missingOffsets[m + 1] > missingOffsets[m])
+                result.add(m);
+        }
+        return result.toArray();
+    }
+
+    /**
+     * @return the indices of the textures that are not used by any model
+     */
+    public int[] getUnusedTextures() {
+        IntList result = new IntList();
+        for(int t=0;t<textures.length;t++) {
+            if(textureOffsets[t + 1] == textureOffsets[t])
+                result.add(t);
+        }
+        return result.toArray();
+    }
+}